@@ -0,0 +1,180 @@
+package au.org.telethonkids.map;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.routing.util.FlagEncoder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Small, deterministic inputs shared by the benchmarks: a grid of streets written as OSM XML and built into a car
+ * graph, plus csv files of points, population cells and isochrones over the same area. Everything is generated into
+ * a temporary folder the first time it is asked for in a benchmark JVM, and deleted when the JVM exits, so that no
+ * data files need to be kept in the repository.
+ */
+final class BenchmarkFixture {
+    // streets every STEP degrees (about 200m) across a SIDE x SIDE grid in the south west of Perth
+    static final double SOUTH = -32.0;
+    static final double WEST = 115.8;
+    static final double STEP = 0.002;
+    static final int SIDE = 60;
+    // every MAJOR_EVERY'th street is a primary road, the rest residential
+    private static final int MAJOR_EVERY = 5;
+    // isochrones are SECONDS_PER_BAND apart, BANDS of them, in minutes in the isochrones csv
+    static final int SECONDS_PER_BAND = 600;
+    static final int BANDS = 3;
+
+    private static BenchmarkFixture instance;
+
+    final Path folder;
+    final GraphHopper hopper;
+    final FlagEncoder encoder;
+
+    private BenchmarkFixture(Path folder, GraphHopper hopper) {
+        this.folder = folder;
+        this.hopper = hopper;
+        this.encoder = hopper.getEncodingManager().getEncoder("car");
+    }
+
+    /**
+     * @return the fixture for this JVM, with its graph built
+     */
+    static synchronized BenchmarkFixture get() throws IOException {
+        if (instance == null) {
+            Path folder = Files.createTempDirectory("travel-time-benchmark");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(folder)));
+            Path osmFile = folder.resolve("grid.osm");
+            writeGridOsm(osmFile);
+            GraphHopper hopper = App.getOSMGraph(osmFile.toString(), folder.resolve("graph").toString(), "car");
+            instance = new BenchmarkFixture(folder, hopper);
+        }
+        return instance;
+    }
+
+    /**
+     * @return lat, lon of a random point inside the grid
+     */
+    static double[] randomPoint(Random random) {
+        return new double[]{SOUTH + STEP + random.nextDouble() * STEP * (SIDE - 3),
+                WEST + STEP + random.nextDouble() * STEP * (SIDE - 3)};
+    }
+
+    /**
+     * Writes a csv of random points with columns id, lat, lon
+     */
+    Path writePointsCsv(String name, int rows, long seed) throws IOException {
+        Path file = folder.resolve(name);
+        Random random = new Random(seed);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("id,lat,lon");
+            for (int i = 0; i < rows; i++) {
+                double[] point = randomPoint(random);
+                out.println(i + "," + point[0] + "," + point[1]);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a population csv (lat, lon, population on each line, no header) with one cell every quarter of a
+     * street block
+     */
+    Path writePopulationCsv() throws IOException {
+        Path file = folder.resolve("population.csv");
+        Random random = new Random(1);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            for (int row = 0; row < 4 * (SIDE - 1); row++) {
+                for (int col = 0; col < 4 * (SIDE - 1); col++) {
+                    out.println((SOUTH + (row + 0.5) * STEP / 4) + "," + (WEST + (col + 0.5) * STEP / 4) + ","
+                            + random.nextInt(50));
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Generates the isochrones of random facilities and writes them as TravelTimeGenerator does, one band per row
+     * with the band in minutes
+     */
+    Path writeIsochronesCsv(int facilities) throws IOException {
+        Path file = folder.resolve("isochrones-" + facilities + ".csv");
+        Random random = new Random(2);
+        WKBWriter wkbWriter = new WKBWriter();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("id_origin,origin_lat,origin_lon,time,isochrone");
+            for (int i = 0; i < facilities; i++) {
+                double[] point = randomPoint(random);
+                List<List<Coordinate>> isochrone = IsochroneGenerator.buildIsochrone(SECONDS_PER_BAND * BANDS,
+                        BANDS, hopper, encoder, point[0], point[1]);
+                if (isochrone == null) {
+                    continue;
+                }
+                List<Coordinate[]> shells = IsochroneGenerator.buildIsochronePolygons(point[0], point[1], isochrone);
+                if (shells == null) {
+                    continue;
+                }
+                List<Geometry> bands = IsochroneGenerator.buildIsochroneBands(shells, 0);
+                for (int j = 0; j < bands.size(); j++) {
+                    out.println(i + "," + point[0] + "," + point[1] + "," + (j + 1) * SECONDS_PER_BAND / 60 + ","
+                            + WKBWriter.toHex(wkbWriter.write(bands.get(j))));
+                }
+            }
+        }
+        return file;
+    }
+
+    private static void writeGridOsm(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file); PrintWriter out = new PrintWriter(writer)) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\" generator=\"BenchmarkFixture\">");
+            for (int row = 0; row < SIDE; row++) {
+                for (int col = 0; col < SIDE; col++) {
+                    out.println("  <node id=\"" + nodeId(row, col) + "\" lat=\"" + (SOUTH + row * STEP)
+                            + "\" lon=\"" + (WEST + col * STEP) + "\"/>");
+                }
+            }
+            long wayId = 1;
+            for (int line = 0; line < SIDE; line++) {
+                String highway = line % MAJOR_EVERY == 0 ? "primary" : "residential";
+                // one street along the row, one along the column
+                out.println("  <way id=\"" + wayId++ + "\">");
+                for (int col = 0; col < SIDE; col++) {
+                    out.println("    <nd ref=\"" + nodeId(line, col) + "\"/>");
+                }
+                out.println("    <tag k=\"highway\" v=\"" + highway + "\"/>");
+                out.println("  </way>");
+                out.println("  <way id=\"" + wayId++ + "\">");
+                for (int row = 0; row < SIDE; row++) {
+                    out.println("    <nd ref=\"" + nodeId(row, line) + "\"/>");
+                }
+                out.println("    <tag k=\"highway\" v=\"" + highway + "\"/>");
+                out.println("  </way>");
+            }
+            out.println("</osm>");
+        }
+    }
+
+    private static long nodeId(int row, int col) {
+        return 1 + row * SIDE + col;
+    }
+
+    private static void delete(Path folder) {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            // only a temporary folder
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package au.org.telethonkids.map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the origins or destinations of a run from csv, and from the binary cache kept beside the csv
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvLoadBenchmark {
+    private static final int ROWS = 100000;
+
+    @Param({"false", "true"})
+    public boolean useCache;
+
+    private String pointsCsv;
+
+    @Setup
+    public void setup() throws IOException {
+        pointsCsv = BenchmarkFixture.get().writePointsCsv("points.csv", ROWS, 6).toString();
+        if (useCache) {
+            // write the cache now, so that only reading it is measured
+            PointTable.load(pointsCsv, "lat", "lon", "id", true, true);
+        }
+    }
+
+    @Benchmark
+    public PointTable loadPoints() throws IOException {
+        return PointTable.load(pointsCsv, "lat", "lon", "id", true, useCache);
+    }
+}
@@ -0,0 +1,87 @@
+package au.org.telethonkids.map;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stages of generating one origin's isochrones: the search that buckets the reached nodes, contouring them
+ * into outlines by each contour mode, and turning the outlines into bands
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IsochroneBenchmark {
+    private static final int ORIGINS = 64;
+
+    @Param({IsochroneGenerator.CONTOUR_DELAUNAY, IsochroneGenerator.CONTOUR_RASTER})
+    public String contourMode;
+
+    private BenchmarkFixture fixture;
+    private final List<double[]> origins = new ArrayList<>();
+    private final List<List<List<Coordinate>>> isochrones = new ArrayList<>();
+    private final List<List<Coordinate[]>> shells = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        fixture = BenchmarkFixture.get();
+        Random random = new Random(4);
+        while (origins.size() < ORIGINS) {
+            double[] origin = BenchmarkFixture.randomPoint(random);
+            List<List<Coordinate>> isochrone = search(origin);
+            List<Coordinate[]> polygonShells = isochrone == null ? null
+                    : IsochroneGenerator.buildIsochronePolygons(origin[0], origin[1], isochrone, contourMode,
+                    RasterContourBuilder.DEFAULT_CELL_METRES);
+            if (polygonShells != null) {
+                origins.add(origin);
+                isochrones.add(isochrone);
+                shells.add(polygonShells);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<List<Coordinate>> buildIsochrone() {
+        next = (next + 1) % ORIGINS;
+        return search(origins.get(next));
+    }
+
+    @Benchmark
+    public List<Coordinate[]> buildIsochronePolygons() {
+        next = (next + 1) % ORIGINS;
+        double[] origin = origins.get(next);
+        return IsochroneGenerator.buildIsochronePolygons(origin[0], origin[1], isochrones.get(next), contourMode,
+                RasterContourBuilder.DEFAULT_CELL_METRES);
+    }
+
+    @Benchmark
+    public List<Geometry> buildIsochroneBands() {
+        next = (next + 1) % ORIGINS;
+        return IsochroneGenerator.buildIsochroneBands(shells.get(next), 0);
+    }
+
+    private List<List<Coordinate>> search(double[] origin) {
+        return IsochroneGenerator.buildIsochrone(BenchmarkFixture.SECONDS_PER_BAND * BenchmarkFixture.BANDS,
+                BenchmarkFixture.BANDS, fixture.hopper, fixture.encoder, origin[0], origin[1]);
+    }
+}
@@ -0,0 +1,60 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.IntArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The join of population cells to the isochrones that reach them, as PopulationMapper and PopulationAggregator
+ * make it for every cell, with the isochrones prepared or not
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PopulationBenchmark {
+    private static final int FACILITIES = 100;
+    private static final int CELLS = 4096;
+
+    @Param({"true", "false"})
+    public boolean prepared;
+
+    private IsochroneIndex isochrones;
+    private final IntArrayList reachable = new IntArrayList();
+    private double[][] cells;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFixture fixture = BenchmarkFixture.get();
+        String band = String.valueOf(BenchmarkFixture.BANDS * BenchmarkFixture.SECONDS_PER_BAND / 60);
+        isochrones = IsochroneIndex.load(fixture.writeIsochronesCsv(FACILITIES).toString(), band, prepared);
+        Random random = new Random(5);
+        cells = new double[CELLS][];
+        for (int i = 0; i < CELLS; i++) {
+            cells[i] = BenchmarkFixture.randomPoint(random);
+        }
+    }
+
+    @Benchmark
+    public int findReachable() {
+        next = (next + 1) % CELLS;
+        isochrones.findReachable(cells[next][0], cells[next][1], reachable);
+        return reachable.size();
+    }
+}
@@ -0,0 +1,63 @@
+package au.org.telethonkids.map;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point to point routing as the car search does it for each pair, and the crow flies distance written with it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+    // pairs are cycled through in order, so each invocation routes a different pair
+    private static final int PAIRS = 1024;
+
+    private BenchmarkFixture fixture;
+    private GHRequest[] requests;
+    private FromTo[] pairs;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        fixture = BenchmarkFixture.get();
+        Random random = new Random(3);
+        requests = new GHRequest[PAIRS];
+        pairs = new FromTo[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            double[] from = BenchmarkFixture.randomPoint(random);
+            double[] to = BenchmarkFixture.randomPoint(random);
+            requests[i] = new GHRequest(from[0], from[1], to[0], to[1]).setVehicle("car");
+            pairs[i] = new FromTo(from[0], from[1], i, to[0], to[1], i);
+        }
+    }
+
+    @Benchmark
+    public GHResponse routePair() {
+        next = (next + 1) % PAIRS;
+        return fixture.hopper.route(requests[next]);
+    }
+
+    @Benchmark
+    public double haversineDistance() {
+        next = (next + 1) % PAIRS;
+        return pairs[next].HaversineDistance();
+    }
+}
@@ -1,22 +1,20 @@
 package au.org.telethonkids.map;
 
-import com.google.common.collect.Sets;
 import com.graphhopper.GraphHopper;
 import com.graphhopper.reader.osm.GraphHopperOSM;
 import com.graphhopper.routing.util.EncodingManager;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.Reader;
-import java.util.Set;
 
 public class App
 {
     private static final long MEGABYTE = 1024L * 1024L;
 
 
+    /**
+     * Loads the graph in the folder, importing it from the OSM file first if there isn't one
+     * @param mode vehicle, or comma separated vehicles (e.g. "car,foot,bike"), the graph is built for: contraction
+     *             hierarchies are prepared for each over the one base graph, and any of them may be routed with
+     */
     public static GraphHopper getOSMGraph(String osmFile, String graphLocation, String mode) {
         return new GraphHopperOSM().setOSMFile(osmFile).
                 setStoreOnFlush(true).
@@ -26,6 +24,30 @@ public class App
                 importOrLoad();
     }
 
+    /**
+     * Opens a graph folder that has already been built (see GraphhopperOSMBuilder) memory mapped rather than
+     * reading it into the heap, and without taking the folder's write lock. Startup then only costs the parts of the
+     * graph that are actually touched, and concurrent runs on one host share the graph through the page cache.
+     * Nothing is ever written back to the folder.
+     * @param mode vehicle, or comma separated vehicles, the graph was built for
+     * @throws IllegalStateException if there is no graph for this mode in the folder
+     */
+    public static GraphHopper loadOSMGraphMemoryMapped(String graphLocation, String mode) {
+        long start = System.currentTimeMillis();
+        GraphHopper hopper = new GraphHopperOSM().
+                setMemoryMapped().
+                setAllowWrites(false).
+                setCHEnabled(true).
+                setEncodingManager(EncodingManager.create(mode));
+        if (!hopper.load(graphLocation)) {
+            throw new IllegalStateException("No graph to load in " + graphLocation
+                    + ", build it first with GraphhopperOSMBuilder");
+        }
+        System.out.println("*** Memory mapped graph " + graphLocation + " in "
+                + (System.currentTimeMillis() - start) + "ms ***");
+        return hopper;
+    }
+
     public static long bytesToMegabytes(long bytes) {
         return bytes / MEGABYTE;
     }
@@ -33,23 +55,11 @@ public class App
     public static void printMemoryUsage() {
         // Get the Java runtime
         Runtime runtime = Runtime.getRuntime();
-        // Run the garbage collector
-        runtime.gc();
-        // Calculate the used memory
+        // Calculate the used memory, without forcing a GC first: that would stall every other thread, and the
+        // figure includes garbage not yet collected
         long memory = runtime.totalMemory() - runtime.freeMemory();
         System.out.println("Used memory is bytes: " + memory);
         System.out.println("Used memory is megabytes: "
                 + bytesToMegabytes(memory));
     }
-
-    public static Set<CSVRecord> getCSVRecords(String csvFile) throws IOException {
-        Reader in = new FileReader(csvFile);
-        Iterable<CSVRecord> records = CSVFormat.RFC4180.withFirstRecordAsHeader().parse(in);
-        Set<CSVRecord> recordsSet = Sets.newHashSet();
-        for (CSVRecord record : records) {
-            recordsSet.add(record);
-        }
-        in.close();
-        return recordsSet;
-    }
 }
@@ -0,0 +1,103 @@
+package au.org.telethonkids.map;
+
+import java.util.Arrays;
+
+/**
+ * Summary of the travel time between a pair of points over a window of departure times, computed from the set of
+ * journeys that a single profile search returns for the whole window.
+ *
+ * For each departure minute in the window the travel time is the time from that minute until the earliest arrival
+ * of any journey that leaves at or after it, i.e. waiting at the origin counts towards the travel time. Departure
+ * minutes with no journey leaving at or after them are counted as not served.
+ */
+class DepartureWindowStats {
+    private final long minTime;
+    private final long medianTime;
+    private final long percentileTime;
+    private final int departuresServed;
+    private final int departures;
+
+    private DepartureWindowStats(long minTime, long medianTime, long percentileTime, int departuresServed,
+                                 int departures) {
+        this.minTime = minTime;
+        this.medianTime = medianTime;
+        this.percentileTime = percentileTime;
+        this.departuresServed = departuresServed;
+        this.departures = departures;
+    }
+
+    /**
+     * @param journeyDepartures departure time (epoch ms) of each journey found
+     * @param journeyArrivals arrival time (epoch ms) of each journey, in the same order
+     * @param windowStart first departure time of the window (epoch ms)
+     * @param stepMillis interval between the departure times considered
+     * @param steps number of departure times considered, starting from windowStart
+     * @param percentile percentile of travel time to report, 0-100
+     * @return the summary, or null if no departure in the window is served by any journey
+     */
+    static DepartureWindowStats compute(long[] journeyDepartures, long[] journeyArrivals, long windowStart,
+                                        long stepMillis, int steps, int percentile) {
+        long[] travelTimes = new long[steps];
+        for (int k = 0; k < steps; k++) {
+            long departure = windowStart + k * stepMillis;
+            long bestArrival = Long.MAX_VALUE;
+            for (int j = 0; j < journeyDepartures.length; j++) {
+                if (journeyDepartures[j] >= departure && journeyArrivals[j] < bestArrival) {
+                    bestArrival = journeyArrivals[j];
+                }
+            }
+            travelTimes[k] = bestArrival == Long.MAX_VALUE ? -1 : bestArrival - departure;
+        }
+        return fromTravelTimes(travelTimes, percentile);
+    }
+
+    /**
+     * @param travelTimes travel time in ms for each departure time in the window, or -1 where it is not served
+     * @param percentile percentile of travel time to report, 0-100
+     * @return the summary, or null if no departure in the window is served
+     */
+    static DepartureWindowStats fromTravelTimes(long[] travelTimes, int percentile) {
+        long[] sorted = new long[travelTimes.length];
+        int served = 0;
+        for (long travelTime : travelTimes) {
+            if (travelTime >= 0) {
+                sorted[served++] = travelTime;
+            }
+        }
+        if (served == 0) {
+            return null;
+        }
+        sorted = Arrays.copyOf(sorted, served);
+        Arrays.sort(sorted);
+        return new DepartureWindowStats(sorted[0], nearestRank(sorted, 50), nearestRank(sorted, percentile),
+                served, travelTimes.length);
+    }
+
+    private static long nearestRank(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    /**
+     * @return shortest travel time in ms over the served departure times
+     */
+    long getMinTime() {
+        return minTime;
+    }
+
+    long getMedianTime() {
+        return medianTime;
+    }
+
+    long getPercentileTime() {
+        return percentileTime;
+    }
+
+    int getDeparturesServed() {
+        return departuresServed;
+    }
+
+    int getDepartures() {
+        return departures;
+    }
+}
@@ -0,0 +1,388 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.LongArrayList;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily generated sequence of From-To point pairs. Pairs are created on demand from their index as a stream is
+ * consumed, so only the origin and destination points themselves are ever held in memory, never the full set of
+ * pairs. Pairs further apart than a maximum straight-line distance can be left out, keeping the index of each pair
+ * that remains the same as it would be without the limit.
+ */
+abstract class FromToPairs {
+
+    /**
+     * @return the total number of point pairs, including any left out for being too far apart
+     */
+    abstract long size();
+
+    /**
+     * @return the number of pairs left out of stream() and originRows() for being further apart than the maximum
+     * distance
+     */
+    long countOutOfRange() {
+        return 0;
+    }
+
+    /**
+     * @return the number of pairs in stream() and originRows()
+     */
+    long countInRange() {
+        return size() - countOutOfRange();
+    }
+
+    /**
+     * @return the point pair at the given index, 0 <= index < size()
+     */
+    abstract FromTo get(long index);
+
+    /**
+     * @return every origin point, in order, without generating the pairs
+     */
+    abstract List<LatLonPair> getOrigins();
+
+    /**
+     * @return every destination point, in order, without generating the pairs
+     */
+    abstract List<LatLonPair> getDestinations();
+
+    /**
+     * @return stream over all the pairs within range, which splits by index range so that it parallelises evenly
+     */
+    Stream<FromTo> stream() {
+        return StreamSupport.stream(new PairSpliterator(0, size()), false);
+    }
+
+    Stream<FromTo> parallelStream() {
+        return StreamSupport.stream(new PairSpliterator(0, size()), true);
+    }
+
+    /**
+     * @return the destinations of all pairs within range, grouped by their origin, in order of first appearance
+     */
+    List<OriginRow> originRows() {
+        Map<LatLonPair, OriginRow> rows = new LinkedHashMap<>();
+        stream().forEach(fromTo -> rows.computeIfAbsent(fromTo.getFrom(), OriginRow::new).add(fromTo));
+        return new ArrayList<>(rows.values());
+    }
+
+    /**
+     * @return hash of all the origin and destination points, identifying this set of pairs between runs
+     */
+    long fingerprint() {
+        long hash = getClass().getSimpleName().hashCode();
+        for (LatLonPair origin : getOrigins()) {
+            hash = 31 * hash + origin.hashCode();
+        }
+        for (LatLonPair destination : getDestinations()) {
+            hash = 31 * hash + destination.hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Every origin paired with every destination (cartesian product); pair index = origin index * destinations
+     * + destination index. With a maximum distance the destinations are held in a PointGrid, so each origin is only
+     * ever paired with the destinations near it and the pairs out of range are never generated at all.
+     */
+    static class Cartesian extends FromToPairs {
+        private final LatLonPair[] origins;
+        private final LatLonPair[] destinations;
+        private final PointGrid grid;
+        private long outOfRange = -1;
+
+        /**
+         * @param maxKm pairs further apart than this are left out, or POSITIVE_INFINITY to keep every pair
+         */
+        Cartesian(PointTable origins, PointTable destinations, double maxKm) {
+            this.origins = origins.toPoints();
+            this.destinations = destinations.toPoints();
+            this.grid = Double.isInfinite(maxKm) ? null : new PointGrid(this.destinations, maxKm);
+        }
+
+        @Override
+        long size() {
+            return (long) origins.length * destinations.length;
+        }
+
+        @Override
+        FromTo get(long index) {
+            return new FromTo(origins[(int) (index / destinations.length)],
+                    destinations[(int) (index % destinations.length)], index);
+        }
+
+        @Override
+        List<LatLonPair> getOrigins() {
+            return Arrays.asList(origins);
+        }
+
+        @Override
+        List<LatLonPair> getDestinations() {
+            return Arrays.asList(destinations);
+        }
+
+        @Override
+        long countOutOfRange() {
+            if (outOfRange < 0) {
+                outOfRange = grid == null ? 0 : size() - IntStream.range(0, origins.length).parallel()
+                        .mapToLong(i -> destinationsInRange(i).length)
+                        .sum();
+            }
+            return outOfRange;
+        }
+
+        @Override
+        Stream<FromTo> stream() {
+            if (grid == null) {
+                return super.stream();
+            }
+            return IntStream.range(0, origins.length).boxed()
+                    .flatMap(i -> {
+                        long firstPairIndex = (long) i * destinations.length;
+                        return Arrays.stream(destinationsInRange(i))
+                                .mapToObj(d -> new FromTo(origins[i], destinations[d], firstPairIndex + d));
+                    });
+        }
+
+        @Override
+        Stream<FromTo> parallelStream() {
+            return grid == null ? super.parallelStream() : stream().parallel();
+        }
+
+        @Override
+        List<OriginRow> originRows() {
+            if (grid != null) {
+                // each origin's destinations are only looked up in the grid as its row is reached
+                return new AbstractList<OriginRow>() {
+                    @Override
+                    public OriginRow get(int i) {
+                        return new OriginRow(origins[i], destinations, destinationsInRange(i),
+                                (long) i * destinations.length);
+                    }
+
+                    @Override
+                    public int size() {
+                        return origins.length;
+                    }
+                };
+            }
+            // every origin shares the one destination list, and its pair indices are contiguous
+            List<LatLonPair> allDestinations = Arrays.asList(destinations);
+            List<OriginRow> rows = new ArrayList<>(origins.length);
+            for (int i = 0; i < origins.length; i++) {
+                rows.add(new OriginRow(origins[i], allDestinations, (long) i * destinations.length));
+            }
+            return rows;
+        }
+
+        private int[] destinationsInRange(int origin) {
+            return grid.within(origins[origin].getLat(), origins[origin].getLon());
+        }
+    }
+
+    /**
+     * The i-th origin paired only with the i-th destination, i.e. one pair per row of a single file. Each origin has
+     * just the one destination to check, so pairs out of range are simply filtered out of the stream.
+     */
+    static class Zipped extends FromToPairs {
+        private final LatLonPair[] origins;
+        private final LatLonPair[] destinations;
+        private final double maxKm;
+        private long outOfRange = -1;
+
+        /**
+         * @param maxKm pairs further apart than this are left out, or POSITIVE_INFINITY to keep every pair
+         */
+        Zipped(PointTable origins, PointTable destinations, double maxKm) {
+            if (origins.size() != destinations.size()) {
+                throw new IllegalArgumentException("Zipped point pairs need the same number of origins and destinations");
+            }
+            this.origins = origins.toPoints();
+            this.destinations = destinations.toPoints();
+            this.maxKm = maxKm;
+        }
+
+        @Override
+        long size() {
+            return origins.length;
+        }
+
+        @Override
+        long countOutOfRange() {
+            if (outOfRange < 0) {
+                outOfRange = Double.isInfinite(maxKm) ? 0 : super.parallelStream()
+                        .filter(fromTo -> !inRange(fromTo))
+                        .count();
+            }
+            return outOfRange;
+        }
+
+        @Override
+        Stream<FromTo> stream() {
+            return Double.isInfinite(maxKm) ? super.stream() : super.stream().filter(this::inRange);
+        }
+
+        @Override
+        Stream<FromTo> parallelStream() {
+            return Double.isInfinite(maxKm) ? super.parallelStream() : super.parallelStream().filter(this::inRange);
+        }
+
+        private boolean inRange(FromTo fromTo) {
+            return fromTo.HaversineDistance() <= maxKm;
+        }
+
+        @Override
+        FromTo get(long index) {
+            return new FromTo(origins[(int) index], destinations[(int) index], index);
+        }
+
+        @Override
+        List<LatLonPair> getOrigins() {
+            return Arrays.asList(origins);
+        }
+
+        @Override
+        List<LatLonPair> getDestinations() {
+            return Arrays.asList(destinations);
+        }
+    }
+
+    /**
+     * One origin together with all of the destinations it is paired with and the index of each of those pairs
+     */
+    static class OriginRow {
+        private final LatLonPair origin;
+        private final List<LatLonPair> destinations;
+        private final long firstPairIndex;
+        private final int[] destinationIndices;
+        private final LongArrayList pairIndices;
+
+        /**
+         * Row whose pairs have consecutive indices starting at firstPairIndex
+         */
+        OriginRow(LatLonPair origin, List<LatLonPair> destinations, long firstPairIndex) {
+            this.origin = origin;
+            this.destinations = destinations;
+            this.firstPairIndex = firstPairIndex;
+            this.destinationIndices = null;
+            this.pairIndices = null;
+        }
+
+        /**
+         * Row of some of the destinations, given by their positions in allDestinations, whose pairs have indices
+         * firstPairIndex + position
+         */
+        OriginRow(LatLonPair origin, LatLonPair[] allDestinations, int[] destinationIndices, long firstPairIndex) {
+            this.origin = origin;
+            this.destinations = new AbstractList<LatLonPair>() {
+                @Override
+                public LatLonPair get(int i) {
+                    return allDestinations[destinationIndices[i]];
+                }
+
+                @Override
+                public int size() {
+                    return destinationIndices.length;
+                }
+            };
+            this.firstPairIndex = firstPairIndex;
+            this.destinationIndices = destinationIndices;
+            this.pairIndices = null;
+        }
+
+        /**
+         * Empty row to be filled with add()
+         */
+        private OriginRow(LatLonPair origin) {
+            this.origin = origin;
+            this.destinations = new ArrayList<>();
+            this.firstPairIndex = 0;
+            this.destinationIndices = null;
+            this.pairIndices = new LongArrayList();
+        }
+
+        private void add(FromTo fromTo) {
+            destinations.add(fromTo.getTo());
+            pairIndices.add(fromTo.getIndex());
+        }
+
+        LatLonPair getOrigin() {
+            return origin;
+        }
+
+        List<LatLonPair> getDestinations() {
+            return destinations;
+        }
+
+        /**
+         * @return index of the pair made of this row's origin and its i-th destination
+         */
+        long getPairIndex(int i) {
+            if (pairIndices != null) {
+                return pairIndices.get(i);
+            }
+            return firstPairIndex + (destinationIndices == null ? i : destinationIndices[i]);
+        }
+    }
+
+    /**
+     * Spliterator over a range of pair indices, creating each pair only as it is consumed
+     */
+    private class PairSpliterator implements Spliterator<FromTo> {
+        private long index;
+        private final long end;
+
+        PairSpliterator(long start, long end) {
+            this.index = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super FromTo> action) {
+            if (index >= end) {
+                return false;
+            }
+            action.accept(get(index++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super FromTo> action) {
+            for (; index < end; index++) {
+                action.accept(get(index));
+            }
+        }
+
+        @Override
+        public Spliterator<FromTo> trySplit() {
+            long mid = index + (end - index) / 2;
+            if (mid <= index) {
+                return null;
+            }
+            PairSpliterator prefix = new PairSpliterator(index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+        }
+    }
+}
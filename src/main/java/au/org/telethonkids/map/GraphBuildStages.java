@@ -0,0 +1,116 @@
+package au.org.telethonkids.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the stages of a graph build in order, logging the time and heap each one took, and leaves a marker file in
+ * the graph folder for each stage that completes. Building the same folder again skips to the first stage without
+ * a marker: completed stages only load what they saved.
+ *
+ * A build that crashed part way through its first stage leaves a folder that GraphHopper may half load, so the
+ * files GraphHopper, the GTFS reader and these stages write are deleted before that stage is run again, unless the
+ * folder holds a graph GraphHopper finished writing. Any other file is left alone. Later stages save their output
+ * with a single flush or an atomic move and so can simply be run again.
+ */
+class GraphBuildStages {
+    private static final String MARKER_PREFIX = "build-";
+    private static final String MARKER_SUFFIX = ".done";
+    // written by GraphHopper after everything else when it flushes a graph, so only present in a complete one
+    private static final String GRAPH_PROPERTIES = "properties";
+    // files written by GraphHopper (graph, CH, landmarks, location index), its GTFS reader (MapDB files of the
+    // transit schedule and of each feed) and the stages themselves
+    private static final Pattern BUILD_FILE = Pattern.compile("nodes|edges|geometry|names|string_index_(keys|vals)"
+            + "|turn_costs|location_index|" + GRAPH_PROPERTIES
+            + "|(nodes_ch|shortcuts|landmarks|subnetwork_landmarks)_\\w+"
+            + "|(transit_schedule|gtfs_\\d+)(\\.[pt])?"
+            + "|(" + Pattern.quote(StopTransferTable.FILE_NAME)
+            + "|" + Pattern.quote(MARKER_PREFIX) + "\\w+" + Pattern.quote(MARKER_SUFFIX) + ")(\\.tmp)?");
+    private final static DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+
+    private final File folder;
+    private boolean first = true;
+
+    /**
+     * Work of one stage, which loads the stage's output instead of building it if the stage is done
+     */
+    interface StageWork<T> {
+        T run(boolean done) throws IOException;
+    }
+
+    GraphBuildStages(String graphLocation) {
+        this.folder = new File(graphLocation);
+    }
+
+    /**
+     * @return whether the stage completed in this or an earlier build of the folder
+     */
+    boolean isDone(String stage) {
+        return new File(folder, MARKER_PREFIX + stage + MARKER_SUFFIX).exists();
+    }
+
+    /**
+     * Runs (or, if it is done, loads) the next stage of the build and marks it done
+     * @return whatever the stage's work returns
+     */
+    <T> T run(String stage, StageWork<T> work) throws IOException {
+        boolean done = isDone(stage);
+        if (first && !done) {
+            if (new File(folder, GRAPH_PROPERTIES).exists()) {
+                // a complete graph from before builds were staged
+                done = true;
+            }
+            else {
+                clearIncompleteBuild();
+            }
+        }
+        first = false;
+        System.out.println((done ? "Loading completed stage " : "Starting stage ") + stage + ": "
+                + dtf.format(LocalDateTime.now()));
+        long start = System.currentTimeMillis();
+        T result = work.run(done);
+        long elapsed = System.currentTimeMillis() - start;
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("*** Stage " + stage + (done ? " loaded" : " built") + " in " + elapsed / 1000 + "s, "
+                + App.bytesToMegabytes(runtime.totalMemory() - runtime.freeMemory()) + "MB of "
+                + App.bytesToMegabytes(runtime.maxMemory()) + "MB heap in use ***");
+        if (!isDone(stage)) {
+            mark(stage, elapsed);
+        }
+        return result;
+    }
+
+    private void mark(String stage, long elapsedMillis) throws IOException {
+        Path marker = new File(folder, MARKER_PREFIX + stage + MARKER_SUFFIX).toPath();
+        Path tempMarker = new File(folder, MARKER_PREFIX + stage + MARKER_SUFFIX + ".tmp").toPath();
+        Files.write(tempMarker, ("completed " + dtf.format(LocalDateTime.now()) + " in " + elapsedMillis + "ms\n")
+                .getBytes(StandardCharsets.UTF_8));
+        Files.move(tempMarker, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the files a crashed first stage left in the graph folder, leaving any others there
+     */
+    private void clearIncompleteBuild() throws IOException {
+        File[] files = folder.listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            return;
+        }
+        System.out.println("*** Clearing incomplete build from " + folder + " ***");
+        for (File file : files) {
+            if (BUILD_FILE.matcher(file.getName()).matches()) {
+                Files.delete(file.toPath());
+            }
+            else {
+                System.out.println("*** Leaving " + file + ", which is not part of a graph build ***");
+            }
+        }
+    }
+}
@@ -9,25 +9,47 @@ import com.graphhopper.storage.GHDirectory;
 import com.graphhopper.storage.GraphHopperStorage;
 import com.graphhopper.storage.index.LocationIndex;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 
 
+/**
+ * Builds a transit graph from an OSM extract and a GTFS feed, in stages: the graph, its location index, then the
+ * walking transfers between stops.
+ * Usage: GraphhopperGTFSBuilder extract.osm.pbf gtfs.zip graphFolder [maxTransferMetres]
+ */
 public class GraphhopperGTFSBuilder {
-    public static void main( String[] args ) {
+    // default for the optional 4th argument, the longest walking transfer between stops to pre-compute (m)
+    private static final double DEFAULT_MAX_TRANSFER_METRES = 1500;
+
+    public static void main( String[] args ) throws IOException {
         String osmFile = args[0];
         String gtfsFile = args[1];
         String graphLocation = args[2];
+        double maxTransferMetres = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_MAX_TRANSFER_METRES;
 
         PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
-        EncodingManager encodingManager = EncodingManager.create(Arrays.asList(ptFlagEncoder, new FootFlagEncoder()), 8);
+        FootFlagEncoder footFlagEncoder = new FootFlagEncoder();
+        EncodingManager encodingManager = EncodingManager.create(Arrays.asList(ptFlagEncoder, footFlagEncoder), 8);
         GHDirectory directory = GraphHopperGtfs.createGHDirectory(graphLocation);
         GtfsStorage gtfsStorage = GraphHopperGtfs.createGtfsStorage();
-        GraphHopperStorage graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, Collections.singleton(gtfsFile), Collections.singleton(osmFile));
-        LocationIndex locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+
+        // each stage saves its output in the graph folder, so a crashed build carries on from the last stage done
+        GraphBuildStages stages = new GraphBuildStages(graphLocation);
+        GraphHopperStorage graphHopperStorage = stages.run("graph", done -> GraphHopperGtfs.createOrLoad(directory,
+                encodingManager, ptFlagEncoder, gtfsStorage, Collections.singleton(gtfsFile),
+                Collections.singleton(osmFile)));
+        LocationIndex locationIndex = stages.run("index",
+                done -> GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage));
         GraphHopperGtfs.createFactory(ptFlagEncoder, GraphHopperGtfs.createTranslationMap(), graphHopperStorage, locationIndex, gtfsStorage)
                 .createWithoutRealtimeFeed();
 
+        // walking transfers between stops for raptor transit searches
+        stages.run("transfers", done -> StopTransferTable.loadOrBuild(graphLocation,
+                RaptorTimetable.readStops(gtfsStorage), graphHopperStorage, locationIndex, footFlagEncoder,
+                maxTransferMetres));
+
         graphHopperStorage.close();
         locationIndex.close();
     }
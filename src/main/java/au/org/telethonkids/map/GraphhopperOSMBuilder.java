@@ -3,18 +3,40 @@ package au.org.telethonkids.map;
 import com.graphhopper.GraphHopper;
 import com.graphhopper.reader.osm.GraphHopperOSM;
 import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.util.CmdArgs;
 
+import java.io.IOException;
+
+/**
+ * Builds a road graph, with contraction hierarchies for each of its profiles, from an OSM extract.
+ * Usage: GraphhopperOSMBuilder extract.osm.pbf graphFolder [threads] [profiles]
+ * Threads (defaulting to the number of processors) decode the PBF's blocks and prepare the contraction hierarchies,
+ * one profile per thread. Profiles are comma separated vehicles, e.g. "car,foot,bike", defaulting to "car": they
+ * share one base graph, so adding a profile costs its contraction hierarchy rather than another import.
+ * Rebuilding a folder whose build completed only loads it; one whose build crashed is cleared and built again.
+ */
 public class GraphhopperOSMBuilder {
-    public static void main( String[] args ) {
+    public static void main( String[] args ) throws IOException {
         String osmFile = args[0];
         String graphLocation = args[1];
-        String mode = "car";
-        GraphHopper hopper = new GraphHopperOSM().setOSMFile(osmFile).
-                setStoreOnFlush(true).
-                setCHEnabled(true).
-                setGraphHopperLocation(graphLocation).
-                setEncodingManager(EncodingManager.create(mode)).
-                importOrLoad();
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        String mode = args.length > 3 ? args[3].replaceAll("\\s", "") : "car";
+
+        // GraphHopper can't add contraction hierarchies to a graph it has already saved, so reading the extract
+        // and contracting the graph are one stage
+        GraphBuildStages stages = new GraphBuildStages(graphLocation);
+        GraphHopper hopper = stages.run("graph", done -> {
+            CmdArgs options = new CmdArgs();
+            options.put("datareader.worker_threads", threads);
+            options.put("prepare.ch.threads", threads);
+            return new GraphHopperOSM().init(options).
+                    setOSMFile(osmFile).
+                    setStoreOnFlush(true).
+                    setCHEnabled(true).
+                    setGraphHopperLocation(graphLocation).
+                    setEncodingManager(EncodingManager.create(mode)).
+                    importOrLoad();
+        });
 
         hopper.close();
     }
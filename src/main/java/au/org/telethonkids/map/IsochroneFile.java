@@ -0,0 +1,400 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongArrayList;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file of isochrones keyed by facility and travel time band, as a compact alternative to csv files of hex
+ * WKB. The file starts with an index holding the band, facility and envelope of every isochrone, sorted by band,
+ * followed by the isochrones themselves as plain WKB. The whole file is memory mapped, so a reader that only needs
+ * one band only ever reads that band's part of the index, and only decodes the geometries it asks for.
+ *
+ * Layout (big-endian):
+ * header: magic, version, facility count, band count, entry count, largest geometry (bytes), data start (long)
+ * bands: band and first entry of each band, in ascending order of band
+ * entries: facility, min x, min y, max x, max y, data offset (long) and length of each isochrone
+ * facilities: id, lat and lon of each facility, as int length + UTF-8 bytes
+ * data: WKB of each isochrone
+ */
+public class IsochroneFile {
+    private static final int MAGIC = 0x49534f43;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * 6 + 8;
+    private static final int BAND_BYTES = 4 + 4;
+    private static final int ENTRY_BYTES = 4 + 4 * 8 + 8 + 4;
+    // data is mapped in windows of this size (plus the largest geometry, so that none spans two windows), as a
+    // single mapping can't exceed 2GB
+    private static final long WINDOW_BYTES = 1L << 30;
+    // last column of the header written by TravelTimeGenerator's isochrone generation
+    private static final String ISOCHRONE_COLUMN = "isochrone";
+
+    private final ByteBuffer index;
+    private final ByteBuffer[] windows;
+    private final int[] bands;
+    private final int[] bandStarts;
+    private final int entryCount;
+    private final List<String[]> facilities;
+
+    private IsochroneFile(ByteBuffer index, ByteBuffer[] windows, int[] bands, int[] bandStarts, int entryCount,
+                          List<String[]> facilities) {
+        this.index = index;
+        this.windows = windows;
+        this.bands = bands;
+        this.bandStarts = bandStarts;
+        this.entryCount = entryCount;
+        this.facilities = facilities;
+    }
+
+    /**
+     * Converts a csv of hex WKB isochrones, as written by TravelTimeGenerator or the Hadoop isochrone job, to an
+     * isochrone file.
+     * Usage: IsochroneFile isochrones.csv isochrones.bin
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: IsochroneFile <isochrones csv> <output file>");
+            System.exit(2);
+        }
+        WKBReader wkbReader = new WKBReader();
+        try (Writer writer = new Writer(args[1])) {
+            readCsv(args[0], (facility, band, hexWkb, line) -> {
+                try {
+                    writer.add(facility, Integer.parseInt(band), wkbReader.read(WKBReader.hexToBytes(hexWkb)));
+                } catch (ParseException | NumberFormatException e) {
+                    throw new InvalidObjectException("Invalid isochrone on line " + line + " of " + args[0] + ": "
+                            + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true if the file is an isochrone file rather than a csv
+     */
+    public static boolean isIsochroneFile(String path) throws IOException {
+        File file = new File(path);
+        if (file.length() < HEADER_BYTES) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Memory maps an isochrone file and reads its list of bands and facilities. Nothing else is read until asked
+     * for.
+     * @throws IOException if the file cannot be read or is not an isochrone file
+     */
+    public static IsochroneFile open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_BYTES));
+            if (header.capacity() < HEADER_BYTES || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new InvalidObjectException(path + " is not an isochrone file of version " + VERSION);
+            }
+            int facilityCount = header.getInt(8);
+            int bandCount = header.getInt(12);
+            int entryCount = header.getInt(16);
+            int maxGeometryBytes = header.getInt(20);
+            long dataStart = header.getLong(24);
+            // the mappings remain valid after the channel is closed
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, dataStart);
+
+            int[] bands = new int[bandCount];
+            int[] bandStarts = new int[bandCount + 1];
+            for (int b = 0; b < bandCount; b++) {
+                bands[b] = index.getInt(HEADER_BYTES + b * BAND_BYTES);
+                bandStarts[b] = index.getInt(HEADER_BYTES + b * BAND_BYTES + 4);
+            }
+            bandStarts[bandCount] = entryCount;
+
+            List<String[]> facilities = new ArrayList<>(facilityCount);
+            ByteBuffer strings = index.duplicate();
+            strings.position(HEADER_BYTES + bandCount * BAND_BYTES + entryCount * ENTRY_BYTES);
+            for (int f = 0; f < facilityCount; f++) {
+                facilities.add(new String[]{readString(strings), readString(strings), readString(strings)});
+            }
+
+            long dataLength = channel.size() - dataStart;
+            ByteBuffer[] windows = new ByteBuffer[(int) ((dataLength + WINDOW_BYTES - 1) / WINDOW_BYTES)];
+            for (int w = 0; w < windows.length; w++) {
+                long start = w * WINDOW_BYTES;
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + start,
+                        Math.min(dataLength - start, WINDOW_BYTES + maxGeometryBytes));
+            }
+            return new IsochroneFile(index, windows, bands, bandStarts, entryCount, facilities);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return index of the band in this file, or -1 if the file has no isochrones for it
+     */
+    public int findBand(int band) {
+        int b = Arrays.binarySearch(bands, band);
+        return b < 0 ? -1 : b;
+    }
+
+    public int[] getBands() {
+        return bands.clone();
+    }
+
+    /**
+     * @return first entry of the band at this index
+     */
+    public int getBandStart(int bandIndex) {
+        return bandStarts[bandIndex];
+    }
+
+    /**
+     * @return one past the last entry of the band at this index
+     */
+    public int getBandEnd(int bandIndex) {
+        return bandStarts[bandIndex + 1];
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public int getFacilityCount() {
+        return facilities.size();
+    }
+
+    /**
+     * @return id, lat and lon of the facility
+     */
+    public String[] getFacility(int facility) {
+        return facilities.get(facility);
+    }
+
+    public int getEntryFacility(int entry) {
+        return index.getInt(entryPosition(entry));
+    }
+
+    public Envelope getEntryEnvelope(int entry) {
+        int position = entryPosition(entry) + 4;
+        return new Envelope(index.getDouble(position), index.getDouble(position + 16),
+                index.getDouble(position + 8), index.getDouble(position + 24));
+    }
+
+    /**
+     * Decodes one isochrone. Safe to call from several threads at once.
+     * @throws IllegalStateException if the stored WKB is invalid
+     */
+    public Geometry readGeometry(int entry) {
+        int position = entryPosition(entry) + 4 + 4 * 8;
+        long offset = index.getLong(position);
+        byte[] bytes = new byte[index.getInt(position + 8)];
+        ByteBuffer window = windows[(int) (offset / WINDOW_BYTES)].duplicate();
+        window.position((int) (offset % WINDOW_BYTES));
+        window.get(bytes);
+        try {
+            return new WKBReader().read(bytes);
+        } catch (ParseException e) {
+            throw new IllegalStateException("Invalid isochrone " + entry + " in isochrone file", e);
+        }
+    }
+
+    private int entryPosition(int entry) {
+        return HEADER_BYTES + bands.length * BAND_BYTES + entry * ENTRY_BYTES;
+    }
+
+    /**
+     * Receives each isochrone of a csv file
+     */
+    interface CsvIsochroneHandler {
+        void accept(String[] facility, String band, String hexWkb, long line) throws IOException;
+    }
+
+    /**
+     * Reads every isochrone of a csv of hex WKB isochrones, either as written by TravelTimeGenerator (with a header
+     * ending in an "isochrone" column) or by the Hadoop isochrone job (no header, facility id in the third column)
+     */
+    static void readCsv(String isochronesCsv, CsvIsochroneHandler handler) throws IOException {
+        boolean firstRecord = true;
+        boolean hasHeader = false;
+        try (Reader in = new BufferedReader(new FileReader(isochronesCsv), 1 << 16);
+             CSVParser parser = CSVFormat.RFC4180.parse(in)) {
+            for (CSVRecord record : parser) {
+                if (firstRecord) {
+                    firstRecord = false;
+                    hasHeader = ISOCHRONE_COLUMN.equals(record.get(record.size() - 1));
+                    if (hasHeader) {
+                        continue;
+                    }
+                }
+                String[] facility;
+                if (hasHeader) {
+                    // id, lat, lon, time, isochrone
+                    facility = new String[]{record.get(0), record.get(1), record.get(2)};
+                }
+                else {
+                    // the origins file's columns (lat and lon last), then time, isochrone
+                    facility = new String[]{record.get(2), record.get(record.size() - 5),
+                            record.get(record.size() - 4)};
+                }
+                handler.accept(facility, record.get(record.size() - 2), record.get(record.size() - 1),
+                        parser.getCurrentLineNumber());
+            }
+        }
+    }
+
+    /**
+     * Writes an isochrone file. The geometries are streamed to a temporary file as they are added and only the
+     * index is kept in memory; the file is assembled, in band order, on close.
+     *
+     * Thread safe.
+     */
+    public static class Writer implements Closeable {
+        private final Path file;
+        private final Path dataFile;
+        private final OutputStream data;
+        private final WKBWriter wkbWriter = new WKBWriter();
+        private final Map<String, Integer> facilityIndexes = new HashMap<>();
+        private final List<String[]> facilities = new ArrayList<>();
+        private final IntArrayList entryBands = new IntArrayList();
+        private final IntArrayList entryFacilities = new IntArrayList();
+        private final DoubleArrayList entryEnvelopes = new DoubleArrayList();
+        private final LongArrayList entryOffsets = new LongArrayList();
+        private final IntArrayList entryLengths = new IntArrayList();
+        private long dataLength;
+        private int maxGeometryBytes;
+
+        public Writer(String file) throws IOException {
+            this.file = Paths.get(file);
+            this.dataFile = Paths.get(file + ".data.tmp");
+            this.data = new BufferedOutputStream(Files.newOutputStream(dataFile), 1 << 16);
+        }
+
+        /**
+         * @param facility id, lat and lon of the facility the isochrone belongs to
+         * @param band travel time band
+         */
+        public synchronized void add(String[] facility, int band, Geometry geometry) throws IOException {
+            String key = String.join(",", facility);
+            Integer facilityIndex = facilityIndexes.get(key);
+            if (facilityIndex == null) {
+                facilityIndex = facilities.size();
+                facilityIndexes.put(key, facilityIndex);
+                facilities.add(facility);
+            }
+            byte[] bytes = wkbWriter.write(geometry);
+            data.write(bytes);
+            Envelope envelope = geometry.getEnvelopeInternal();
+            entryBands.add(band);
+            entryFacilities.add(facilityIndex);
+            entryEnvelopes.add(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+            entryOffsets.add(dataLength);
+            entryLengths.add(bytes.length);
+            dataLength += bytes.length;
+            maxGeometryBytes = Math.max(maxGeometryBytes, bytes.length);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            data.close();
+            int entryCount = entryBands.size();
+            Integer[] order = new Integer[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingInt(entryBands::get).thenComparingInt(entryFacilities::get));
+            IntArrayList bands = new IntArrayList();
+            IntArrayList bandStarts = new IntArrayList();
+            for (int i = 0; i < entryCount; i++) {
+                int band = entryBands.get(order[i]);
+                if (bands.isEmpty() || bands.get(bands.size() - 1) != band) {
+                    bands.add(band);
+                    bandStarts.add(i);
+                }
+            }
+            List<byte[]> facilityBytes = new ArrayList<>(facilities.size() * 3);
+            long facilitiesLength = 0;
+            for (String[] facility : facilities) {
+                for (String value : facility) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    facilityBytes.add(bytes);
+                    facilitiesLength += 4 + bytes.length;
+                }
+            }
+            long dataStart = HEADER_BYTES + (long) bands.size() * BAND_BYTES + (long) entryCount * ENTRY_BYTES
+                    + facilitiesLength;
+
+            // write to a temporary file and move it into place, so an interrupted run never leaves a truncated file
+            Path tempFile = Paths.get(file + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tempFile), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(facilities.size());
+                out.writeInt(bands.size());
+                out.writeInt(entryCount);
+                out.writeInt(maxGeometryBytes);
+                out.writeLong(dataStart);
+                for (int b = 0; b < bands.size(); b++) {
+                    out.writeInt(bands.get(b));
+                    out.writeInt(bandStarts.get(b));
+                }
+                for (int i : order) {
+                    out.writeInt(entryFacilities.get(i));
+                    for (int k = 0; k < 4; k++) {
+                        out.writeDouble(entryEnvelopes.get(4 * i + k));
+                    }
+                    out.writeLong(entryOffsets.get(i));
+                    out.writeInt(entryLengths.get(i));
+                }
+                for (byte[] bytes : facilityBytes) {
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                Files.copy(dataFile, out);
+            }
+            Files.delete(dataFile);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("*** Wrote " + entryCount + " isochrones in " + bands.size() + " bands for "
+                    + facilities.size() + " facilities to " + file + " ***");
+        }
+    }
+}
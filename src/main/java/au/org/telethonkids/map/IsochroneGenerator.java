@@ -3,22 +3,16 @@ package au.org.telethonkids.map;
 import com.google.common.collect.Lists;
 import com.graphhopper.GraphHopper;
 import com.graphhopper.isochrone.algorithm.ContourBuilder;
-import com.graphhopper.isochrone.algorithm.Isochrone;
-import com.graphhopper.routing.QueryGraph;
-import com.graphhopper.routing.util.DefaultEdgeFilter;
 import com.graphhopper.routing.util.EncodingManager;
 import com.graphhopper.routing.util.FlagEncoder;
-import com.graphhopper.routing.weighting.FastestWeighting;
-import com.graphhopper.storage.Graph;
-import com.graphhopper.storage.index.QueryResult;
 
-import com.graphhopper.util.PMap;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
+import org.locationtech.jts.algorithm.RayCrossingCounter;
 import org.locationtech.jts.geom.*;
 import org.locationtech.jts.io.WKBWriter;
-import org.locationtech.jts.io.WKTWriter;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.locationtech.jts.triangulate.ConformingDelaunayTriangulator;
 import org.locationtech.jts.triangulate.ConstraintVertex;
 import org.locationtech.jts.triangulate.quadedge.LocateFailureException;
@@ -32,11 +26,15 @@ import java.util.*;
 
 public class IsochroneGenerator {
 
+    public final static String CONTOUR_DELAUNAY = "delaunay";
+    public final static String CONTOUR_RASTER = "raster";
+
+    private final static double METRES_PER_DEGREE = 111320;
+
     private final static DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
 
     private final static GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(), 4326);
-    private final static WKTWriter wktWriter = new WKTWriter();
-    private final static WKBWriter wkbWriter = new WKBWriter();
+    private final static ThreadLocal<IsochroneWorkspace> workspaces = new ThreadLocal<>();
 
 
     public static void main( String[] args ) throws IOException {
@@ -50,7 +48,14 @@ public class IsochroneGenerator {
         String osmFile = args[0];
         String graphLocation = args[1];
         String mode = args [2];
-        GraphHopper hopper = App.getOSMGraph(osmFile, graphLocation, mode);
+        // optional: "raster" to contour on a grid of the given cell size (m) instead of triangulating
+        String contourMode = args.length > 6 ? args[6] : CONTOUR_DELAUNAY;
+        double cellMetres = args.length > 7 ? Double.parseDouble(args[7]) : RasterContourBuilder.DEFAULT_CELL_METRES;
+        // optional: simplify the band outlines to within this many metres, 0 to keep every vertex
+        double simplifyMetres = args.length > 8 ? Double.parseDouble(args[8]) : 0;
+        // optional: every profile the graph was built for, if more than the one (mode) to route with
+        String graphProfiles = args.length > 9 ? args[9] : mode;
+        GraphHopper hopper = App.getOSMGraph(osmFile, graphLocation, graphProfiles);
         EncodingManager encodingManager = hopper.getEncodingManager();
         FlagEncoder encoder = encodingManager.getEncoder(mode);
         System.out.println("Network loaded: " + dtf.format(LocalDateTime.now()));
@@ -71,45 +76,44 @@ public class IsochroneGenerator {
         FileWriter out = new FileWriter(args[4]);
         CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT);
         printer.printRecord("time", "isochrone","lat","lon");
+        // progress every 30s, rather than memory use after every origin
+        RunMetrics metrics = new RunMetrics("origins", csvRecords.size(), 0, args[4] + ".metrics.jsonl", 30);
         csvRecords.parallelStream().forEach(
         record -> {
                     Double lat = Double.parseDouble(record.get("Lat"));
                     Double lon = Double.parseDouble(record.get("Long"));
+                    long routeStart = System.nanoTime();
                     List<List<Coordinate>> isochrone = buildIsochrone(timeLimit, numberOfBuckets, hopper, encoder, lat, lon);
-                    System.out.println("Isochrone loaded: " + dtf.format(LocalDateTime.now()));
-                    App.printMemoryUsage();
+                    metrics.recordSince(RunMetrics.ROUTE, routeStart);
                     if(isochrone != null){
-                        List<Coordinate[]> polygonShells = buildIsochronePolygons(lat, lon, isochrone);
+                        List<Coordinate[]> polygonShells = buildIsochronePolygons(lat, lon, isochrone, contourMode, cellMetres);
                         if(polygonShells != null) {
-                            Polygon previousPolygon = geometryFactory.createPolygon(polygonShells.get(0));
-                            previousPolygon.setSRID(4326);
+                            List<Geometry> bands = buildIsochroneBands(polygonShells, simplifyMetres);
                             int interval = timeLimit / numberOfBuckets;
-                            try {
-                                printer.printRecord( interval , WKBWriter.toHex(wkbWriter.write(previousPolygon)), record.get("Lat"), record.get("Long"));
-                            } catch (IOException e) {
-                                e.printStackTrace();
+                            // WKBWriter is not thread safe, so one per origin
+                            WKBWriter wkbWriter = new WKBWriter();
+                            List<String> hexBands = new ArrayList<>(bands.size());
+                            for (Geometry band : bands) {
+                                band.setSRID(4326);
+                                hexBands.add(WKBWriter.toHex(wkbWriter.write(band)));
                             }
-                            for (int j = 1; j < polygonShells.size() - 1; j++) {
-                                Polygon polygon = geometryFactory.createPolygon(polygonShells.get(j));
-                                polygon.setSRID(4326);
-                                try {
-                                    Geometry difference = polygon.difference(previousPolygon);
-                                    difference.setSRID(4326);
-                                    printer.printRecord( ((j+1) * interval) , WKBWriter.toHex(wkbWriter.write(difference)), record.get("Lat"), record.get("Long"));
-                                } catch (IOException e) {
-                                    e.printStackTrace();
+                            // nor is the printer, so write each origin's bands together
+                            synchronized (printer) {
+                                for (int j = 0; j < hexBands.size(); j++) {
+                                    try {
+                                        printer.printRecord( ((j+1) * interval) , hexBands.get(j), record.get("Lat"), record.get("Long"));
+                                    } catch (IOException e) {
+                                        e.printStackTrace();
+                                    }
                                 }
-                                previousPolygon = polygon;
-
                             }
-
                         }
                         isochrone.clear();
                     }
-                    System.out.println("Isochrone cleared: " + dtf.format(LocalDateTime.now()));
-                    App.printMemoryUsage();
+                    metrics.addDone(1);
                 }
         );
+        metrics.close();
         App.printMemoryUsage();
         printer.close();
 
@@ -117,6 +121,95 @@ public class IsochroneGenerator {
         System.out.println("End: " + dtf.format(end));
     }
 
+    /**
+     * Outlines the area reached within each time band, by the chosen contouring method
+     * @param contourMode CONTOUR_RASTER to contour on a grid, otherwise the nodes are triangulated
+     * @param cellMetres grid spacing for CONTOUR_RASTER
+     */
+    public static List<Coordinate[]> buildIsochronePolygons(Double lat, Double lon, List<List<Coordinate>> isochrone,
+                                                            String contourMode, double cellMetres) {
+        if (CONTOUR_RASTER.equalsIgnoreCase(contourMode)) {
+            return RasterContourBuilder.buildIsochronePolygons(lat, lon, isochrone, cellMetres);
+        }
+        return buildIsochronePolygons(lat, lon, isochrone);
+    }
+
+    /**
+     * Turns the outlines of an isochrone into disjoint bands, each the area within its outline but outside all of
+     * the ones before. Where an outline lies inside the next, as it normally does, the band is built with the
+     * inner outline as its hole rather than by computing a difference. Where they are not nested (the origin may
+     * be in neither main component), or the band with a hole would not be valid, the band is the difference
+     * between its outline and everything covered by the bands before it.
+     * @param polygonShells outline of the area reached within each band, from buildIsochronePolygons
+     * @param simplifyMetres tolerance to simplify the outlines to, or 0 to keep every vertex. All the outlines are
+     *                       simplified together, so that simplifying one cannot make it cross another, and each is
+     *                       shared by the two bands it separates, so the bands still meet exactly.
+     * @return one geometry per outline, the first being the outline itself
+     */
+    public static List<Geometry> buildIsochroneBands(List<Coordinate[]> polygonShells, double simplifyMetres) {
+        List<LinearRing> rings = new ArrayList<>(polygonShells.size());
+        for (Coordinate[] shell : polygonShells) {
+            rings.add(geometryFactory.createLinearRing(shell));
+        }
+        if (simplifyMetres > 0) {
+            rings = simplifyTogether(rings, simplifyMetres / METRES_PER_DEGREE);
+        }
+
+        List<Geometry> bands = new ArrayList<>(rings.size());
+        Polygon previous = null;
+        // everything the bands so far cover: the previous outline itself while the outlines are nested
+        Geometry covered = null;
+        for (LinearRing ring : rings) {
+            Polygon outline = geometryFactory.createPolygon(ring);
+            Polygon withHole = null;
+            if (previous != null && covered == previous
+                    && ring.getEnvelopeInternal().covers(previous.getEnvelopeInternal())
+                    && RayCrossingCounter.locatePointInRing(previous.getCoordinates()[0], ring.getCoordinates())
+                    == Location.INTERIOR) {
+                withHole = geometryFactory.createPolygon(ring,
+                        new LinearRing[]{(LinearRing) previous.getExteriorRing()});
+                if (!withHole.isValid()) {
+                    withHole = null;
+                }
+            }
+            if (withHole != null) {
+                bands.add(withHole);
+                covered = outline;
+            }
+            else if (covered == null) {
+                bands.add(outline);
+                covered = outline;
+            }
+            else {
+                bands.add(outline.difference(covered));
+                covered = outline.covers(covered) ? outline : covered.union(outline);
+            }
+            previous = outline;
+        }
+        return bands;
+    }
+
+    /**
+     * Simplifies the rings as one MultiLineString, which keeps them from crossing each other
+     * @return the simplified rings, or the rings as they were if simplifying them would leave any too few points
+     */
+    private static List<LinearRing> simplifyTogether(List<LinearRing> rings, double toleranceDegrees) {
+        Geometry simplified = TopologyPreservingSimplifier.simplify(
+                geometryFactory.createMultiLineString(rings.toArray(new LineString[0])), toleranceDegrees);
+        if (simplified.getNumGeometries() != rings.size()) {
+            return rings;
+        }
+        List<LinearRing> simplifiedRings = new ArrayList<>(rings.size());
+        for (int i = 0; i < rings.size(); i++) {
+            LineString line = (LineString) simplified.getGeometryN(i);
+            if (line.getNumPoints() < 4 || !line.isClosed()) {
+                return rings;
+            }
+            simplifiedRings.add(geometryFactory.createLinearRing(line.getCoordinates()));
+        }
+        return simplifiedRings;
+    }
+
     public static ArrayList<Coordinate[]> buildIsochronePolygons(Double lat, Double lon, List<List<Coordinate>> isochrone) {
         Collection<ConstraintVertex> sites = new ArrayList<>();
         for (int j = 0; j < isochrone.size(); j++) {
@@ -149,6 +242,10 @@ public class IsochroneGenerator {
             for (int j = 0; j < isochrone.size() - 1; j++) {
                 MultiPolygon multiPolygon = contourBuilder.computeIsoline((double) j + 0.5);
                 Polygon maxPolygon = heuristicallyFindMainConnectedComponent(multiPolygon, geometryFactory.createPoint(new Coordinate(lon, lat)));
+                if (maxPolygon == null) {
+                    // nothing was reached within this band
+                    return null;
+                }
                 polygonShells.add(maxPolygon.getExteriorRing().getCoordinates());
             }
             return  polygonShells;
@@ -158,22 +255,23 @@ public class IsochroneGenerator {
 
     }
 
+    /**
+     * Groups the network nodes reachable from a point within timeLimit seconds into numberOfBuckets time bands,
+     * plus a last band of those reached a little after the limit, using a workspace kept per calling thread so that
+     * nothing sized to the graph is allocated per origin
+     * @return the nodes' coordinates in each of the numberOfBuckets + 1 bands, or null if the point is not near
+     * the network
+     */
     public static List<List<Coordinate>> buildIsochrone(int timeLimit, int numberOfBuckets, GraphHopper hopper, FlagEncoder encoder, Double lat, Double lon) {
-        QueryResult qr = hopper.getLocationIndex().findClosest(lat, lon, DefaultEdgeFilter.allEdges(encoder));
-        Graph graph = hopper.getGraphHopperStorage();
-        QueryGraph queryGraph = new QueryGraph(graph);
-        try {
-            queryGraph.lookup(Collections.singletonList(qr));
-            PMap pMap = new PMap();
-            Isochrone isochrone = new Isochrone(queryGraph, new FastestWeighting(encoder, pMap), false);
-            isochrone.setTimeLimit(timeLimit);
-            return isochrone.searchGPS(qr.getClosestNode(), numberOfBuckets);
-        } catch (IllegalStateException exception) {
-            return null;
+        IsochroneWorkspace workspace = workspaces.get();
+        if (workspace == null || !workspace.isFor(hopper, encoder)) {
+            workspace = new IsochroneWorkspace(hopper, encoder);
+            workspaces.set(workspace);
         }
+        return workspace.search(timeLimit, numberOfBuckets, lat, lon);
     }
 
-    private static Polygon heuristicallyFindMainConnectedComponent(MultiPolygon multiPolygon, Point point) {
+    static Polygon heuristicallyFindMainConnectedComponent(MultiPolygon multiPolygon, Point point) {
         int maxPoints = 0;
         Polygon maxPolygon = null;
         for (int j = 0; j < multiPolygon.getNumGeometries(); j++) {
@@ -0,0 +1,222 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.IntArrayList;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The isochrones of one travel time band for every facility, in an STRtree, for finding which facilities can be
+ * reached from a point. Each isochrone is normally prepared once when it is loaded, so that the point-in-polygon
+ * tests against it use a cached index of its edges rather than walking every edge of the polygon each time.
+ *
+ * The index is read-only once loaded, apart from isochrones read lazily from an IsochroneFile, and can be shared by
+ * any number of threads.
+ */
+public class IsochroneIndex {
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final STRtree tree;
+    // id, lat and lon of each distinct facility
+    private final List<String[]> facilities;
+    private final int isochroneCount;
+    private final boolean prepared;
+
+    private IsochroneIndex(STRtree tree, List<String[]> facilities, int isochroneCount, boolean prepared) {
+        this.tree = tree;
+        this.facilities = facilities;
+        this.isochroneCount = isochroneCount;
+        this.prepared = prepared;
+    }
+
+    /**
+     * As load(isochronesFile, travelTimeBand, true)
+     */
+    public static IsochroneIndex load(String isochronesFile, String travelTimeBand) throws IOException {
+        return load(isochronesFile, travelTimeBand, true);
+    }
+
+    /**
+     * Reads the isochrones of one band from an IsochroneFile or from a csv of hex WKB isochrones, either as written
+     * by TravelTimeGenerator (with a header ending in an "isochrone" column, band in minutes) or by the Hadoop
+     * isochrone job (no header, facility id in the third column, band in seconds)
+     * @param isochronesFile path to the isochrones file
+     * @param travelTimeBand the band to load, exactly as it appears in the file
+     * @param prepare whether to prepare the isochrones for repeated point-in-polygon tests; only worth turning off
+     *                to compare the speed of the two
+     * @throws IOException if the file cannot be read or holds an invalid geometry
+     */
+    public static IsochroneIndex load(String isochronesFile, String travelTimeBand, boolean prepare)
+            throws IOException {
+        if (IsochroneFile.isIsochroneFile(isochronesFile)) {
+            return load(IsochroneFile.open(isochronesFile), Integer.parseInt(travelTimeBand), prepare);
+        }
+        WKBReader wkbReader = new WKBReader();
+        STRtree tree = new STRtree();
+        List<String[]> facilities = new ArrayList<>();
+        Map<String, Integer> facilityIndexes = new HashMap<>();
+        int[] isochroneCount = {0};
+        IsochroneFile.readCsv(isochronesFile, (facility, band, hexWkb, line) -> {
+            if (!travelTimeBand.equals(band)) {
+                return;
+            }
+            Geometry geometry;
+            try {
+                geometry = wkbReader.read(WKBReader.hexToBytes(hexWkb));
+            } catch (ParseException e) {
+                throw new InvalidObjectException("Invalid isochrone on line " + line + " of " + isochronesFile
+                        + ": " + e.getMessage());
+            }
+            String key = String.join(",", facility);
+            Integer index = facilityIndexes.get(key);
+            if (index == null) {
+                index = facilities.size();
+                facilityIndexes.put(key, index);
+                facilities.add(facility);
+            }
+            Isochrone isochrone = new Isochrone(index, geometry);
+            if (prepare) {
+                isochrone.prepare();
+            }
+            tree.insert(geometry.getEnvelopeInternal(), isochrone);
+            isochroneCount[0]++;
+        });
+        // build now, as the tree is not safe to build lazily from several threads
+        tree.build();
+        System.out.println("*** Loaded " + isochroneCount[0] + (prepare ? " prepared" : "") + " isochrones of band "
+                + travelTimeBand + " for " + facilities.size() + " facilities ***");
+        return new IsochroneIndex(tree, facilities, isochroneCount[0], prepare);
+    }
+
+    /**
+     * Indexes the isochrones of one band of an IsochroneFile by the envelopes in the file's index. Each geometry is
+     * only decoded (and prepared) the first time a point falls within its envelope, so isochrones that no point
+     * comes near are never read from the file.
+     */
+    public static IsochroneIndex load(IsochroneFile file, int travelTimeBand, boolean prepare) {
+        STRtree tree = new STRtree();
+        int bandIndex = file.findBand(travelTimeBand);
+        int isochroneCount = 0;
+        if (bandIndex >= 0) {
+            for (int entry = file.getBandStart(bandIndex); entry < file.getBandEnd(bandIndex); entry++) {
+                tree.insert(file.getEntryEnvelope(entry), new Isochrone(file, entry, prepare));
+                isochroneCount++;
+            }
+        }
+        tree.build();
+        List<String[]> facilities = new ArrayList<>(file.getFacilityCount());
+        for (int f = 0; f < file.getFacilityCount(); f++) {
+            facilities.add(file.getFacility(f));
+        }
+        System.out.println("*** Indexed " + isochroneCount + " isochrones of band " + travelTimeBand
+                + " for " + facilities.size() + " facilities, to be read as needed ***");
+        return new IsochroneIndex(tree, facilities, isochroneCount, prepare);
+    }
+
+    /**
+     * Finds every isochrone that contains or touches a point
+     * @param facilitiesOut cleared, then given the facility index of each such isochrone (repeated if a facility
+     *                      has more than one)
+     * @return number of isochrones whose envelope contains the point, and so had to be tested
+     */
+    public int findReachable(double lat, double lon, IntArrayList facilitiesOut) {
+        facilitiesOut.clear();
+        Coordinate coordinate = new Coordinate(lon, lat);
+        List<?> candidates = tree.query(new Envelope(coordinate));
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        Point point = geometryFactory.createPoint(coordinate);
+        for (Object candidate : candidates) {
+            Isochrone isochrone = (Isochrone) candidate;
+            if (isochrone.intersects(point)) {
+                facilitiesOut.add(isochrone.facility);
+            }
+        }
+        return candidates.size();
+    }
+
+    /**
+     * @return whether the isochrones were prepared when they were loaded
+     */
+    public boolean isPrepared() {
+        return prepared;
+    }
+
+    public int getFacilityCount() {
+        return facilities.size();
+    }
+
+    public int getIsochroneCount() {
+        return isochroneCount;
+    }
+
+    /**
+     * @return id, lat and lon of the facility
+     */
+    public String[] getFacility(int facility) {
+        return facilities.get(facility);
+    }
+
+    private static class Isochrone {
+        private final int facility;
+        // null until read, if the isochrone is read from an IsochroneFile as needed
+        private final IsochroneFile file;
+        private final int entry;
+        private final boolean prepare;
+        private volatile Geometry geometry;
+        // null if not prepared
+        private volatile PreparedGeometry preparedGeometry;
+
+        Isochrone(int facility, Geometry geometry) {
+            this.facility = facility;
+            this.geometry = geometry;
+            this.file = null;
+            this.entry = -1;
+            this.prepare = false;
+        }
+
+        Isochrone(IsochroneFile file, int entry, boolean prepare) {
+            this.facility = file.getEntryFacility(entry);
+            this.file = file;
+            this.entry = entry;
+            this.prepare = prepare;
+        }
+
+        void prepare() {
+            preparedGeometry = PreparedGeometryFactory.prepare(geometry);
+        }
+
+        boolean intersects(Point point) {
+            if (geometry == null) {
+                read();
+            }
+            PreparedGeometry prepared = preparedGeometry;
+            return prepared != null ? prepared.intersects(point) : geometry.intersects(point);
+        }
+
+        private synchronized void read() {
+            if (geometry == null) {
+                Geometry read = file.readGeometry(entry);
+                if (prepare) {
+                    preparedGeometry = PreparedGeometryFactory.prepare(read);
+                }
+                // set last, as other threads only take the lock while it is null
+                geometry = read;
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package au.org.telethonkids.map;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.routing.weighting.FastestWeighting;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.storage.index.QueryResult;
+import com.graphhopper.util.EdgeExplorer;
+import org.locationtech.jts.geom.Coordinate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything needed to grow isochrones from one origin after another on a single thread, allocated once: the
+ * search arrays (sized to the graph and reset between origins by a generation stamp), the weighting and the edge
+ * explorer. Replaces building a new QueryGraph, weighting and GraphHopper Isochrone, each with its own hash maps,
+ * for every origin.
+ *
+ * Not thread safe; create one per thread.
+ */
+public class IsochroneWorkspace {
+    // how far past the time limit to search, to find the nodes just outside the outermost band
+    private static final double FINISH_LIMIT_FRACTION = 0.14;
+    private static final long FINISH_LIMIT_MIN_MILLIS = 200_000;
+
+    private final GraphHopper hopper;
+    private final FlagEncoder encoder;
+    private final Graph graph;
+    private final NodeAccess nodeAccess;
+    private final LocationIndex locationIndex;
+    private final EdgeFilter snapFilter;
+    private final Weighting weighting;
+    private final EdgeExplorer explorer;
+    private final OneToManySearch search;
+
+    public IsochroneWorkspace(GraphHopper hopper, FlagEncoder encoder) {
+        this.hopper = hopper;
+        this.encoder = encoder;
+        this.graph = hopper.getGraphHopperStorage();
+        this.nodeAccess = graph.getNodeAccess();
+        this.locationIndex = hopper.getLocationIndex();
+        this.snapFilter = DefaultEdgeFilter.allEdges(encoder);
+        this.weighting = new FastestWeighting(encoder);
+        this.explorer = graph.createEdgeExplorer(DefaultEdgeFilter.outEdges(encoder));
+        this.search = new OneToManySearch(graph.getNodes());
+    }
+
+    /**
+     * @return true if this workspace was created for the given graph and encoder
+     */
+    public boolean isFor(GraphHopper hopper, FlagEncoder encoder) {
+        return this.hopper == hopper && this.encoder == encoder;
+    }
+
+    /**
+     * Searches out from the network node nearest to a point and groups the nodes reached by travel time, in the
+     * same form as GraphHopper's Isochrone.searchGPS: bucket i < numberOfBuckets holds the nodes reached in
+     * [i * timeLimit / numberOfBuckets, (i + 1) * timeLimit / numberOfBuckets), and bucket numberOfBuckets those
+     * reached after the limit but within the finish limit (see search(bandEdges, lat, lon)). Each node comes with
+     * the midpoint of the edge it was reached along.
+     * @param timeLimit seconds
+     * @param numberOfBuckets number of equal time intervals within the limit
+     * @return numberOfBuckets + 1 lists of coordinates, or null if the point is not near the network
+     */
+    public List<List<Coordinate>> search(int timeLimit, int numberOfBuckets, double lat, double lon) {
+        long[] bandEdges = new long[numberOfBuckets];
+        for (int i = 0; i < numberOfBuckets; i++) {
+            bandEdges[i] = Math.round((i + 1) * timeLimit * 1000.0 / numberOfBuckets);
+        }
+        return search(bandEdges, lat, lon);
+    }
+
+    /**
+     * As search(timeLimit, numberOfBuckets, lat, lon), but with bands of any length: bucket i holds the nodes
+     * reached before bandEdges[i] and not before bandEdges[i - 1]. As in GraphHopper's Isochrone, the search
+     * carries on past the time limit to a finish limit of limit + max(0.14 * limit, 200 s), and the nodes reached
+     * in that time go in the last bucket, so that the outline of the outermost band lies between nodes inside
+     * and outside it rather than along the edge of the search.
+     * @param bandEdges end of each band in ms, ascending; the last is the time limit
+     * @return bandEdges.length + 1 lists of coordinates, or null if the point is not near the network
+     */
+    public List<List<Coordinate>> search(long[] bandEdges, double lat, double lon) {
+        QueryResult qr = locationIndex.findClosest(lat, lon, snapFilter);
+        if (!qr.isValid()) {
+            return null;
+        }
+        long limit = bandEdges[bandEdges.length - 1];
+        search.setTimeLimit(limit + Math.max(Math.round(limit * FINISH_LIMIT_FRACTION), FINISH_LIMIT_MIN_MILLIS));
+        search.search(explorer, weighting, graph.getNodes(), qr.getClosestNode(), null);
+
+        List<List<Coordinate>> buckets = new ArrayList<>(bandEdges.length + 1);
+        for (int i = 0; i <= bandEdges.length; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int i = 0; i < search.getVisitedNodes(); i++) {
+            int node = search.getSettledNode(i);
+            long time = search.getTime(node);
+            int bucket = 0;
+            while (bucket < bandEdges.length && time >= bandEdges[bucket]) {
+                bucket++;
+            }
+            double nodeLat = nodeAccess.getLatitude(node);
+            double nodeLon = nodeAccess.getLongitude(node);
+            buckets.get(bucket).add(new Coordinate(nodeLon, nodeLat));
+            int parent = search.getParentNode(node);
+            if (parent >= 0) {
+                // guess the centre of the road as well, for more precision along long edges
+                buckets.get(bucket).add(new Coordinate((nodeLon + nodeAccess.getLongitude(parent)) / 2,
+                        (nodeLat + nodeAccess.getLatitude(parent)) / 2));
+            }
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,284 @@
+package au.org.telethonkids.map;
+
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+
+import java.util.Arrays;
+
+/**
+ * Single-source shortest path (Dijkstra) search that expands the graph once from an origin node and records the
+ * weight, travel time and distance to every node it settles. Travel times to any number of destinations can then
+ * be read from the one search tree instead of running a point-to-point query for each destination.
+ *
+ * The search state lives in primitive arrays that are allocated once and "cleared" between origins by bumping a
+ * generation stamp, so an instance should be kept per thread and reused for every origin that thread handles.
+ * Instances are not thread safe.
+ */
+public class OneToManySearch {
+
+    private double[] weights;
+    private long[] times;
+    private double[] distances;
+    private int[] parentEdges;
+    private int[] parentNodes;
+    // nodes in the order they were settled by the last search
+    private int[] settledNodes;
+    // a node's entries in the arrays above are only valid if its stamp equals the current generation
+    private int[] visitedStamps;
+    private int[] settledStamps;
+    private int[] targetStamps;
+    private int generation;
+
+    private final MinHeap heap = new MinHeap(1024);
+
+    private double weightLimit = Double.MAX_VALUE;
+    private long timeLimit = Long.MAX_VALUE;
+    private int visitedNodes;
+
+    public OneToManySearch(int nodeCount) {
+        allocate(Math.max(nodeCount, 16));
+    }
+
+    /**
+     * Stops the search once the cheapest unsettled node has a weight greater than this
+     */
+    public OneToManySearch setWeightLimit(double weightLimit) {
+        this.weightLimit = weightLimit;
+        return this;
+    }
+
+    /**
+     * Stops the search once the cheapest unsettled node is more than this many milliseconds from the origin
+     */
+    public OneToManySearch setTimeLimit(long timeLimitMillis) {
+        this.timeLimit = timeLimitMillis;
+        return this;
+    }
+
+    /**
+     * Runs the search from a single node. If target nodes are given the search stops as soon as all of them have
+     * been settled (or the configured limits are reached); if targets is null the whole reachable graph within the
+     * limits is settled.
+     * @param explorer edge explorer over the graph (or query graph) to search, filtered to the edges that may be
+     *                 traversed in the forward direction
+     * @param weighting weighting used to order the search, which also provides the edge travel times
+     * @param nodeCount number of nodes in the graph being searched, including any virtual nodes
+     * @param fromNode node to start from
+     * @param targets nodes whose arrival values will be read afterwards, may be null
+     */
+    public void search(EdgeExplorer explorer, Weighting weighting, int nodeCount, int fromNode, int[] targets) {
+        if (nodeCount > visitedStamps.length) {
+            allocate(Math.max(nodeCount, visitedStamps.length + visitedStamps.length / 2));
+        }
+        nextGeneration();
+        visitedNodes = 0;
+
+        int remainingTargets = Integer.MAX_VALUE;
+        if (targets != null) {
+            remainingTargets = 0;
+            for (int target : targets) {
+                if (targetStamps[target] != generation) {
+                    targetStamps[target] = generation;
+                    remainingTargets++;
+                }
+            }
+        }
+
+        visit(fromNode, 0, 0, 0, EdgeIterator.NO_EDGE, -1);
+        heap.clear();
+        heap.push(0, fromNode);
+
+        while (!heap.isEmpty() && remainingTargets > 0) {
+            double weight = heap.peekKey();
+            int node = heap.pop();
+            if (settledStamps[node] == generation) {
+                // stale heap entry, the node was already settled via a cheaper path
+                continue;
+            }
+            if (weight > weightLimit || times[node] > timeLimit) {
+                break;
+            }
+            settledStamps[node] = generation;
+            settledNodes[visitedNodes++] = node;
+            if ((visitedNodes & 1023) == 0) {
+                RoutingExecutor.checkDeadline();
+            }
+            if (targetStamps[node] == generation) {
+                remainingTargets--;
+            }
+
+            EdgeIterator iter = explorer.setBaseNode(node);
+            while (iter.next()) {
+                int adjNode = iter.getAdjNode();
+                if (settledStamps[adjNode] == generation) {
+                    continue;
+                }
+                double edgeWeight = weighting.calcWeight(iter, false, parentEdges[node]);
+                if (Double.isInfinite(edgeWeight)) {
+                    continue;
+                }
+                double adjWeight = weight + edgeWeight;
+                if (visitedStamps[adjNode] != generation || adjWeight < weights[adjNode]) {
+                    visit(adjNode, adjWeight,
+                            times[node] + weighting.calcMillis(iter, false, parentEdges[node]),
+                            distances[node] + iter.getDistance(), iter.getEdge(), node);
+                    heap.push(adjWeight, adjNode);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the node was settled by the last search, i.e. a shortest path to it is known
+     */
+    public boolean isReached(int node) {
+        return node < settledStamps.length && settledStamps[node] == generation;
+    }
+
+    public double getWeight(int node) {
+        return weights[node];
+    }
+
+    /**
+     * @return travel time in milliseconds from the origin of the last search
+     */
+    public long getTime(int node) {
+        return times[node];
+    }
+
+    /**
+     * @return network distance in metres from the origin of the last search
+     */
+    public double getDistance(int node) {
+        return distances[node];
+    }
+
+    /**
+     * @return the node before this one on its shortest path, or -1 for the origin
+     */
+    public int getParentNode(int node) {
+        return parentNodes[node];
+    }
+
+    /**
+     * @return number of nodes settled by the last search
+     */
+    public int getVisitedNodes() {
+        return visitedNodes;
+    }
+
+    /**
+     * @return the i-th node settled by the last search, 0 <= i < getVisitedNodes()
+     */
+    public int getSettledNode(int i) {
+        return settledNodes[i];
+    }
+
+    private void visit(int node, double weight, long time, double distance, int parentEdge, int parentNode) {
+        visitedStamps[node] = generation;
+        weights[node] = weight;
+        times[node] = time;
+        distances[node] = distance;
+        parentEdges[node] = parentEdge;
+        parentNodes[node] = parentNode;
+    }
+
+    private void nextGeneration() {
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            // practically never happens, but stamps from 2^31 searches ago must not be mistaken for current ones
+            Arrays.fill(visitedStamps, 0);
+            Arrays.fill(settledStamps, 0);
+            Arrays.fill(targetStamps, 0);
+            generation = 1;
+        }
+    }
+
+    private void allocate(int nodeCount) {
+        weights = new double[nodeCount];
+        times = new long[nodeCount];
+        distances = new double[nodeCount];
+        parentEdges = new int[nodeCount];
+        parentNodes = new int[nodeCount];
+        settledNodes = new int[nodeCount];
+        visitedStamps = new int[nodeCount];
+        settledStamps = new int[nodeCount];
+        targetStamps = new int[nodeCount];
+        generation = 0;
+    }
+
+    /**
+     * Binary min-heap of (weight, node) entries held in primitive arrays. There is no decrease-key: an improved
+     * node is simply pushed again and the stale entry is skipped when it is popped.
+     */
+    private static class MinHeap {
+        private double[] keys;
+        private int[] nodes;
+        private int size;
+
+        MinHeap(int capacity) {
+            keys = new double[capacity];
+            nodes = new int[capacity];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double peekKey() {
+            return keys[0];
+        }
+
+        void push(double key, int node) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                nodes[i] = nodes[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+        }
+
+        int pop() {
+            int result = nodes[0];
+            size--;
+            if (size > 0) {
+                double key = keys[size];
+                int node = nodes[size];
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && keys[child + 1] < keys[child]) {
+                        child++;
+                    }
+                    if (key <= keys[child]) {
+                        break;
+                    }
+                    keys[i] = keys[child];
+                    nodes[i] = nodes[child];
+                    i = child;
+                }
+                keys[i] = key;
+                nodes[i] = node;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+
+import java.util.Arrays;
+
+/**
+ * Points bucketed into a grid of cells as tall as a search radius, so that the points within that radius of a
+ * location are found by looking only in the few cells around it rather than measuring the distance to every point.
+ * Cells are the same number of degrees wide as they are tall, and a search covers the exact longitude span of its
+ * radius at that latitude, wrapping across the antimeridian and taking in every longitude near a pole.
+ */
+class PointGrid {
+    private static final double EARTH_RADIUS_KM = 6371;
+    // smallest cell, so that a radius of (almost) nothing doesn't make a cell per point
+    private static final double MIN_CELL_DEGREES = 1e-4;
+    // widens each search a little, so that rounding never loses a point right on the radius
+    private static final double SLACK_DEGREES = 1e-9;
+
+    private final double[] lats;
+    private final double[] lons;
+    private final double radiusKm;
+    private final double cellDegrees;
+    private final int columns;
+    private final LongObjectHashMap<int[]> cells = new LongObjectHashMap<>();
+
+    /**
+     * @param points points to index, which are referred to by their position in this array
+     * @param radiusKm distance within which points are searched for
+     */
+    PointGrid(LatLonPair[] points, double radiusKm) {
+        this.radiusKm = radiusKm;
+        this.cellDegrees = Math.max(Math.min(Math.toDegrees(radiusKm / EARTH_RADIUS_KM), 180), MIN_CELL_DEGREES);
+        this.columns = (int) Math.ceil(360 / cellDegrees);
+        lats = new double[points.length];
+        lons = new double[points.length];
+        LongObjectHashMap<IntArrayList> filling = new LongObjectHashMap<>();
+        for (int i = 0; i < points.length; i++) {
+            lats[i] = points[i].getLat();
+            lons[i] = points[i].getLon();
+            long cell = cellKey(row(lats[i]), column(lons[i]));
+            IntArrayList members = filling.get(cell);
+            if (members == null) {
+                members = new IntArrayList();
+                filling.put(cell, members);
+            }
+            members.add(i);
+        }
+        for (LongObjectCursor<IntArrayList> cell : filling) {
+            cells.put(cell.key, cell.value.toArray());
+        }
+    }
+
+    /**
+     * @return positions of the points within the radius of the location, by great circle distance, in ascending order
+     */
+    int[] within(double lat, double lon) {
+        double radiusRadians = radiusKm / EARTH_RADIUS_KM;
+        double latSpan = Math.toDegrees(radiusRadians) + SLACK_DEGREES;
+        double minLat = lat - latSpan;
+        double maxLat = lat + latSpan;
+
+        IntArrayList found = new IntArrayList();
+        if (minLat <= -90 || maxLat >= 90 || radiusRadians >= Math.PI / 2) {
+            // the circle takes in a pole, so reaches every longitude
+            search(lat, lon, minLat, maxLat, -180, 180, found);
+        }
+        else {
+            // greatest longitude difference of any point on the circle, which is reached poleward of lat. Rounding
+            // can take the ratio just past 1 when the circle all but reaches a pole, where asin would give NaN.
+            double lonSpan = Math.toDegrees(Math.asin(Math.min(1,
+                    Math.sin(radiusRadians) / Math.cos(Math.toRadians(lat))))) + SLACK_DEGREES;
+            double minLon = lon - lonSpan;
+            double maxLon = lon + lonSpan;
+            if (minLon < -180) {
+                search(lat, lon, minLat, maxLat, -180, maxLon, found);
+                search(lat, lon, minLat, maxLat, minLon + 360, 180, found);
+            }
+            else if (maxLon > 180) {
+                search(lat, lon, minLat, maxLat, minLon, 180, found);
+                search(lat, lon, minLat, maxLat, -180, maxLon - 360, found);
+            }
+            else {
+                search(lat, lon, minLat, maxLat, minLon, maxLon, found);
+            }
+        }
+        int[] indices = found.toArray();
+        Arrays.sort(indices);
+        return indices;
+    }
+
+    /**
+     * Adds the points in the cells over the given box that are within the radius of the location
+     */
+    private void search(double lat, double lon, double minLat, double maxLat, double minLon, double maxLon,
+                        IntArrayList found) {
+        int lastRow = row(maxLat);
+        int firstColumn = column(minLon);
+        int lastColumn = column(maxLon);
+        for (int row = row(minLat); row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int[] members = cells.get(cellKey(row, column));
+                if (members == null) {
+                    continue;
+                }
+                for (int i : members) {
+                    if (FromTo.haversineKm(lat, lon, lats[i], lons[i]) <= radiusKm) {
+                        found.add(i);
+                    }
+                }
+            }
+        }
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor((Math.max(Math.min(lat, 90), -90) + 90) / cellDegrees);
+    }
+
+    private int column(double lon) {
+        // the last column may be narrower than the others, so 180 is clamped into it rather than wrapped to 0
+        int column = (int) Math.floor((Math.max(Math.min(lon, 180), -180) + 180) / cellDegrees);
+        return Math.min(column, columns - 1);
+    }
+
+    private static long cellKey(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+}
@@ -0,0 +1,275 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Column-oriented table of points: each point's latitude, longitude and id are parsed once and held in primitive
+ * arrays, so that pair generation never has to go back to the CSV file.
+ *
+ * Loading can optionally keep a binary copy of the parsed columns next to the CSV file. On later runs with the same,
+ * unmodified CSV file and the same columns, that copy is memory-mapped and bulk-read instead of parsing the CSV again.
+ * The copy records which columns it holds, so it is never used for a load of different columns.
+ */
+class PointTable {
+    private static final int CACHE_MAGIC = 0x50544142;
+    private static final int CACHE_VERSION = 2;
+    // magic, version, source length, source modified time, dedupe flag, table count; then the column names of each
+    // table and the row count
+    private static final int CACHE_FIXED_HEADER_BYTES = 4 + 4 + 8 + 8 + 1 + 4;
+
+    private final double[] lats;
+    private final double[] lons;
+    private final int[] ids;
+
+    PointTable(double[] lats, double[] lons, int[] ids) {
+        if (lats.length != lons.length || lats.length != ids.length) {
+            throw new IllegalArgumentException("Point table columns must all be the same length");
+        }
+        this.lats = lats;
+        this.lons = lons;
+        this.ids = ids;
+    }
+
+    /**
+     * Reads the lat, lon and id columns of a CSV file (with a header row) into a new table, in file order. No other
+     * columns are kept.
+     * @param csvFile path to the csv file
+     * @param latCol column name of the latitude column
+     * @param lonCol column name of the longitude column
+     * @param idCol column name of the id column
+     * @param dedupeById if true only the first row with each id is kept; must be false when rows of the file are
+     *                   paired with rows of another table by position
+     * @param useCache if true, use (or create) a binary cache of the parsed columns alongside the CSV file
+     * @return
+     * @throws IOException, NumberFormatException
+     */
+    static PointTable load(String csvFile, String latCol, String lonCol, String idCol,
+                           boolean dedupeById, boolean useCache) throws IOException, NumberFormatException {
+        return load(csvFile, new String[][]{{latCol, lonCol, idCol}}, dedupeById, useCache)[0];
+    }
+
+    /**
+     * Reads several sets of lat, lon and id columns of a CSV file into one table each, in a single pass over the
+     * file, e.g. the origin and the destination of each row of a single file of pairs
+     * @param csvFile path to the csv file
+     * @param columns lat, lon and id column names of each table
+     * @param dedupeById if true only the first row with each id is kept; only allowed for a single table, as
+     *                   otherwise the rows of the tables would no longer line up
+     * @param useCache if true, use (or create) a binary cache of the parsed columns alongside the CSV file
+     * @return one table per set of columns, in the same order
+     * @throws IOException, NumberFormatException
+     */
+    static PointTable[] load(String csvFile, String[][] columns, boolean dedupeById, boolean useCache)
+            throws IOException, NumberFormatException {
+        if (dedupeById && columns.length > 1) {
+            throw new IllegalArgumentException("Rows can only be de-duplicated when loading a single table");
+        }
+        File source = new File(csvFile);
+        Path cacheFile = Paths.get(csvFile + ".points-"
+                + Integer.toHexString(31 * Arrays.deepHashCode(columns) + Boolean.hashCode(dedupeById)) + ".bin");
+        if (useCache) {
+            PointTable[] cached = readCache(cacheFile, source, columns, dedupeById);
+            if (cached != null) {
+                System.out.println("Loaded " + cached[0].size() + " points from cache " + cacheFile);
+                return cached;
+            }
+        }
+
+        int tableCount = columns.length;
+        DoubleArrayList[] lats = new DoubleArrayList[tableCount];
+        DoubleArrayList[] lons = new DoubleArrayList[tableCount];
+        IntArrayList[] ids = new IntArrayList[tableCount];
+        for (int t = 0; t < tableCount; t++) {
+            lats[t] = new DoubleArrayList();
+            lons[t] = new DoubleArrayList();
+            ids[t] = new IntArrayList();
+        }
+        IntHashSet seenIds = new IntHashSet();
+        int duplicates = 0;
+        try (Reader in = new BufferedReader(new FileReader(source), 1 << 16);
+             CSVParser parser = CSVFormat.RFC4180.withFirstRecordAsHeader().parse(in)) {
+            int[][] indices = new int[tableCount][3];
+            for (int t = 0; t < tableCount; t++) {
+                for (int c = 0; c < 3; c++) {
+                    Integer index = parser.getHeaderMap().get(columns[t][c]);
+                    if (index == null) {
+                        throw new InvalidObjectException("File " + csvFile + " does not contain all of the columns "
+                                + String.join(", ", columns[t]));
+                    }
+                    indices[t][c] = index;
+                }
+            }
+            for (CSVRecord record : parser) {
+                if (dedupeById && !seenIds.add(Integer.parseInt(record.get(indices[0][2])))) {
+                    duplicates++;
+                    continue;
+                }
+                for (int t = 0; t < tableCount; t++) {
+                    lats[t].add(Double.parseDouble(record.get(indices[t][0])));
+                    lons[t].add(Double.parseDouble(record.get(indices[t][1])));
+                    ids[t].add(Integer.parseInt(record.get(indices[t][2])));
+                }
+            }
+        }
+        if (duplicates > 0) {
+            System.out.println("*** Skipped " + duplicates + " rows of " + csvFile + " with a duplicate "
+                    + columns[0][2] + " ***");
+        }
+
+        PointTable[] tables = new PointTable[tableCount];
+        for (int t = 0; t < tableCount; t++) {
+            tables[t] = new PointTable(lats[t].toArray(), lons[t].toArray(), ids[t].toArray());
+        }
+        if (useCache) {
+            try {
+                writeCache(cacheFile, source, columns, dedupeById, tables);
+            } catch (IOException e) {
+                // the cache is only an optimisation, so carry on without it (e.g. read-only input folder)
+                System.out.println("*** WARNING - could not write point cache " + cacheFile + ": " + e.getMessage());
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @return the cached tables, or null if there is no cache or it does not match the current source file and the
+     * requested columns
+     */
+    private static PointTable[] readCache(Path cacheFile, File source, String[][] columns, boolean dedupeById)
+            throws IOException {
+        if (!Files.exists(cacheFile)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            if (channel.size() < CACHE_FIXED_HEADER_BYTES) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != CACHE_MAGIC || buffer.getInt() != CACHE_VERSION
+                    || buffer.getLong() != source.length() || buffer.getLong() != source.lastModified()
+                    || (buffer.get() != 0) != dedupeById || buffer.getInt() != columns.length) {
+                return null;
+            }
+            for (String[] tableColumns : columns) {
+                for (String column : tableColumns) {
+                    byte[] expected = column.getBytes(StandardCharsets.UTF_8);
+                    if (buffer.remaining() < 4 || buffer.getInt() != expected.length
+                            || buffer.remaining() < expected.length) {
+                        return null;
+                    }
+                    byte[] stored = new byte[expected.length];
+                    buffer.get(stored);
+                    if (!Arrays.equals(stored, expected)) {
+                        return null;
+                    }
+                }
+            }
+            if (buffer.remaining() < 4) {
+                return null;
+            }
+            int count = buffer.getInt();
+            int dataStart = buffer.position();
+            if (channel.size() != dataStart + 20L * count * columns.length) {
+                return null;
+            }
+            PointTable[] tables = new PointTable[columns.length];
+            for (int t = 0; t < columns.length; t++) {
+                double[] lats = new double[count];
+                double[] lons = new double[count];
+                int[] ids = new int[count];
+                int tableStart = dataStart + 20 * count * t;
+                buffer.position(tableStart);
+                DoubleBuffer doubles = buffer.asDoubleBuffer();
+                doubles.get(lats);
+                doubles.get(lons);
+                buffer.position(tableStart + 16 * count);
+                buffer.asIntBuffer().get(ids);
+                tables[t] = new PointTable(lats, lons, ids);
+            }
+            return tables;
+        }
+    }
+
+    private static void writeCache(Path cacheFile, File source, String[][] columns, boolean dedupeById,
+                                   PointTable[] tables) throws IOException {
+        // write to a temporary file and move it into place, so an interrupted run never leaves a truncated cache
+        Path tempFile = Paths.get(cacheFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeBoolean(dedupeById);
+            out.writeInt(columns.length);
+            for (String[] tableColumns : columns) {
+                for (String column : tableColumns) {
+                    byte[] bytes = column.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            out.writeInt(tables[0].ids.length);
+            for (PointTable table : tables) {
+                for (double lat : table.lats) {
+                    out.writeDouble(lat);
+                }
+                for (double lon : table.lons) {
+                    out.writeDouble(lon);
+                }
+                for (int id : table.ids) {
+                    out.writeInt(id);
+                }
+            }
+        }
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    double getLat(int i) {
+        return lats[i];
+    }
+
+    double getLon(int i) {
+        return lons[i];
+    }
+
+    int getId(int i) {
+        return ids[i];
+    }
+
+    LatLonPair getPoint(int i) {
+        return new LatLonPair(lats[i], lons[i], ids[i]);
+    }
+
+    /**
+     * @return one LatLonPair per row, in table order
+     */
+    LatLonPair[] toPoints() {
+        LatLonPair[] points = new LatLonPair[ids.length];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = getPoint(i);
+        }
+        return points;
+    }
+}
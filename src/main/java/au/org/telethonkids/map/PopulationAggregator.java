@@ -0,0 +1,187 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongDoubleHashMap;
+import com.carrotsearch.hppc.cursors.LongDoubleCursor;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sums the population that can reach each facility within one travel time band, on a single machine, in place of
+ * the Hadoop population demand job (PopulationDemandDriver, PopulationMapper and PopulationSumReducer) and with the
+ * same result: for each facility and each number of facilities sharing a population cell, the total population of
+ * the cells that lie within that facility's isochrone.
+ *
+ * The population csv (lat, lon, population on each line) is streamed in batches of lines to a pool of threads,
+ * which look each cell up in one shared IsochroneIndex and add it to a primitive map of their own, so nothing but
+ * the sums is held in memory whatever the size of the population file. The threads' maps are merged at the end.
+ */
+public class PopulationAggregator {
+    private static final int BATCH_LINES = 8192;
+    private final static DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+
+    private final IsochroneIndex isochrones;
+    // every thread's sums, keyed by facility index in the high int and facilities sharing the cell in the low int
+    private final Queue<LongDoubleHashMap> threadSums = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<LongDoubleHashMap> sums = ThreadLocal.withInitial(() -> {
+        LongDoubleHashMap map = new LongDoubleHashMap();
+        threadSums.add(map);
+        return map;
+    });
+    private final ThreadLocal<IntArrayList> reachable = ThreadLocal.withInitial(IntArrayList::new);
+    private final AtomicLong cells = new AtomicLong();
+    private final AtomicLong skippedLines = new AtomicLong();
+
+    public PopulationAggregator(IsochroneIndex isochrones) {
+        this.isochrones = isochrones;
+    }
+
+    /**
+     * Usage: PopulationAggregator isochrones.csv population.csv travelTimeBand output.csv [threads]
+     * The isochrones may also be an IsochroneFile, in which case only those near the population cells are read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: PopulationAggregator <isochrones csv or file> <population csv> <travel time band> "
+                    + "<output csv> [threads]");
+            System.exit(2);
+        }
+        System.out.println("Start: " + dtf.format(LocalDateTime.now()));
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        IsochroneIndex isochrones = IsochroneIndex.load(args[0], args[2]);
+        PopulationAggregator aggregator = new PopulationAggregator(isochrones);
+        try (RoutingExecutor executor = new RoutingExecutor(threads, 4 * threads, 0)) {
+            aggregator.addPopulation(args[1], executor);
+        }
+        aggregator.write(args[3]);
+        System.out.println("End: " + dtf.format(LocalDateTime.now()));
+    }
+
+    /**
+     * Adds every cell of a population csv to the sums
+     * @param populationCsv lines of lat, lon, population; lines that are not numbers (e.g. a header) are skipped
+     * @param executor threads to look the cells up on
+     */
+    void addPopulation(String populationCsv, RoutingExecutor executor) throws IOException {
+        System.out.println("Summing population from " + populationCsv + " within " + isochrones.getIsochroneCount()
+                + " isochrones");
+        try (BufferedReader in = new BufferedReader(new FileReader(populationCsv), 1 << 20)) {
+            executor.forEachWithoutBudget(batches(in), this::addBatch);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        System.out.println("*** Summed " + cells.get() + " population cells ***");
+        if (skippedLines.get() > 0) {
+            System.out.println("*** Skipped " + skippedLines.get() + " lines of " + populationCsv
+                    + " that are not lat, lon, population ***");
+        }
+    }
+
+    private void addBatch(List<String> lines) {
+        LongDoubleHashMap threadSum = sums.get();
+        IntArrayList facilities = reachable.get();
+        int added = 0;
+        for (String line : lines) {
+            int firstComma = line.indexOf(',');
+            int secondComma = firstComma < 0 ? -1 : line.indexOf(',', firstComma + 1);
+            if (secondComma < 0) {
+                skippedLines.incrementAndGet();
+                continue;
+            }
+            int thirdComma = line.indexOf(',', secondComma + 1);
+            double lat, lon, population;
+            try {
+                lat = Double.parseDouble(line.substring(0, firstComma));
+                lon = Double.parseDouble(line.substring(firstComma + 1, secondComma));
+                population = Double.parseDouble(line.substring(secondComma + 1,
+                        thirdComma < 0 ? line.length() : thirdComma));
+            } catch (NumberFormatException e) {
+                skippedLines.incrementAndGet();
+                continue;
+            }
+            isochrones.findReachable(lat, lon, facilities);
+            for (int i = 0; i < facilities.size(); i++) {
+                threadSum.addTo(((long) facilities.get(i) << 32) | facilities.size(), population);
+            }
+            added++;
+        }
+        cells.addAndGet(added);
+    }
+
+    /**
+     * Writes one row per facility and number of facilities sharing the cells, in facility order
+     */
+    void write(String outputCsv) throws IOException {
+        LongDoubleHashMap total = new LongDoubleHashMap();
+        for (LongDoubleHashMap threadSum : threadSums) {
+            for (LongDoubleCursor cursor : threadSum) {
+                total.addTo(cursor.key, cursor.value);
+            }
+        }
+        long[] keys = total.keys().toArray();
+        Arrays.sort(keys);
+        try (CSVPrinter printer = new CSVPrinter(new BufferedWriter(new FileWriter(outputCsv), 1 << 16),
+                CSVFormat.DEFAULT)) {
+            printer.printRecord("facility_id", "facility_lat", "facility_lon", "facilities_sharing", "population");
+            for (long key : keys) {
+                String[] facility = isochrones.getFacility((int) (key >>> 32));
+                printer.printRecord(facility[0], facility[1], facility[2], (int) key, total.get(key));
+            }
+        }
+        System.out.println("*** Wrote " + keys.length + " population sums to " + outputCsv + " ***");
+    }
+
+    /**
+     * @return the lines of the reader in batches, read as they are asked for
+     */
+    private static Iterator<List<String>> batches(BufferedReader in) {
+        return new Iterator<List<String>>() {
+            private List<String> next = read();
+
+            private List<String> read() {
+                List<String> batch = new ArrayList<>(BATCH_LINES);
+                try {
+                    String line;
+                    while (batch.size() < BATCH_LINES && (line = in.readLine()) != null) {
+                        batch.add(line);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return batch.isEmpty() ? null : batch;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public List<String> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                List<String> batch = next;
+                next = read();
+                return batch;
+            }
+        };
+    }
+}
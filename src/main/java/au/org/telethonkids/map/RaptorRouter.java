@@ -0,0 +1,282 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.graphhopper.routing.QueryGraph;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.routing.weighting.FastestWeighting;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.storage.index.QueryResult;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Public transport router that runs RAPTOR over a RaptorTimetable, as an alternative to GraphHopper's own
+ * time-expanded graph search. The walks from the origin to the first stop and from the last stop to the
+ * destination are found with a one-to-many search over the foot network of the same graph that GraphHopper uses.
+ *
+ * Each thread gets its own search state, so a single router can be shared by all of the routing threads.
+ */
+class RaptorRouter {
+    private final RaptorTimetable timetable;
+    private final Graph graph;
+    private final Weighting footWeighting;
+    private final EdgeFilter footOutFilter;
+    private final double maxWalkMetres;
+    private final int[] stopNodes;
+    private final ThreadLocal<OneToManySearch> walks;
+    private final ThreadLocal<RaptorSearch> searches;
+
+    /**
+     * @param timetable services for the day being routed
+     * @param graph graph containing the foot network
+     * @param locationIndex index of that graph, used to find the street node nearest each stop
+     * @param footEncoder encoder of the foot network
+     * @param maxWalkMetres furthest that may be walked to the first stop or from the last
+     * @param maxRides most vehicles a journey may use
+     * @param blockedRouteType GTFS route_type that may not be used, or -1 to allow all
+     */
+    RaptorRouter(RaptorTimetable timetable, Graph graph, LocationIndex locationIndex, FlagEncoder footEncoder,
+                 double maxWalkMetres, int maxRides, int blockedRouteType) {
+        this.timetable = timetable;
+        this.graph = graph;
+        this.footWeighting = new FastestWeighting(footEncoder);
+        this.footOutFilter = DefaultEdgeFilter.outEdges(footEncoder);
+        this.maxWalkMetres = maxWalkMetres;
+        EdgeFilter footFilter = DefaultEdgeFilter.allEdges(footEncoder);
+        this.stopNodes = new int[timetable.getStopCount()];
+        for (int stop = 0; stop < stopNodes.length; stop++) {
+            QueryResult snap = locationIndex.findClosest(timetable.getStopLat(stop), timetable.getStopLon(stop),
+                    footFilter);
+            stopNodes[stop] = snap.isValid() ? snap.getClosestNode() : -1;
+        }
+        this.walks = ThreadLocal.withInitial(() -> new OneToManySearch(graph.getNodes()));
+        this.searches = ThreadLocal.withInitial(() -> new RaptorSearch(timetable, maxRides, blockedRouteType));
+    }
+
+    /**
+     * Finds the earliest arriving journey that uses at least one vehicle
+     * @param originSnap private copy of the origin's snap to the foot network
+     * @param destinationSnap private copy of the destination's snap
+     * @param departure time of leaving the origin
+     * @return the journey, or null if no stop within walking distance of the destination can be reached
+     */
+    Journey route(QueryResult originSnap, QueryResult destinationSnap, Instant departure) {
+        StopWalks access = walkToStops(originSnap);
+        StopWalks egress = walkToStops(destinationSnap);
+        int[] egressSeconds = egress.secondsByStop(timetable.getStopCount());
+
+        RaptorSearch search = searches.get();
+        search.reset();
+        int start = timetable.toServiceSeconds(departure);
+        int arrival = search.run(start, access.stops, access.seconds, egressSeconds);
+        if (arrival == RaptorSearch.UNREACHED) {
+            return null;
+        }
+        int[] transferMetres = new int[1];
+        int accessStop = search.traceBest(transferMetres);
+        double walkMetres = access.metresTo(accessStop) + egress.metresTo(search.getBestEgressStop())
+                + transferMetres[0];
+        return new Journey((arrival - start) * 1000L, walkMetres, search.getBestRides());
+    }
+
+    /**
+     * Finds the travel time for each of a series of departure times, searching the latest departure first so that
+     * each earlier one only has to improve on the arrivals already found
+     * @param originSnap private copy of the origin's snap to the foot network
+     * @param destinationSnap private copy of the destination's snap
+     * @param firstDeparture earliest departure time
+     * @param stepSeconds interval between departure times
+     * @param steps number of departure times
+     * @return travel time in ms for each departure time, in order, or -1 where no journey was found
+     */
+    long[] routeRange(QueryResult originSnap, QueryResult destinationSnap, Instant firstDeparture,
+                      int stepSeconds, int steps) {
+        StopWalks access = walkToStops(originSnap);
+        StopWalks egress = walkToStops(destinationSnap);
+        int[] egressSeconds = egress.secondsByStop(timetable.getStopCount());
+
+        RaptorSearch search = searches.get();
+        search.reset();
+        int first = timetable.toServiceSeconds(firstDeparture);
+        long[] travelTimes = new long[steps];
+        for (int step = steps - 1; step >= 0; step--) {
+            int departure = first + step * stepSeconds;
+            int arrival = search.run(departure, access.stops, access.seconds, egressSeconds);
+            travelTimes[step] = arrival == RaptorSearch.UNREACHED ? -1 : (arrival - departure) * 1000L;
+        }
+        return travelTimes;
+    }
+
+    /**
+     * Finds the earliest arriving journey from one origin to each of many destinations, from a single search that
+     * is run to every stop rather than towards any one destination
+     * @param originSnap private copy of the origin's snap to the foot network
+     * @param destinationWalks walkToStops() of each destination
+     * @param departure time of leaving the origin
+     * @return the journey to each destination, null where no journey was found
+     */
+    Journey[] routeFromOrigin(QueryResult originSnap, List<StopWalks> destinationWalks, Instant departure) {
+        StopWalks access = walkToStops(originSnap);
+        RaptorSearch search = searches.get();
+        search.reset();
+        int start = timetable.toServiceSeconds(departure);
+        search.run(start, access.stops, access.seconds, null);
+
+        Journey[] journeys = new Journey[destinationWalks.size()];
+        int[] traced = new int[2];
+        for (int d = 0; d < journeys.length; d++) {
+            StopWalks egress = destinationWalks.get(d);
+            int best = egress.bestStop(search);
+            if (best < 0) {
+                continue;
+            }
+            int egressStop = egress.stops[best];
+            traced[0] = 0;
+            int rides = search.traceToStop(egressStop, traced);
+            int arrival = search.getBestTransitArrival(egressStop) + egress.seconds[best];
+            double walkMetres = access.metresTo(traced[1]) + egress.metres[best] + traced[0];
+            journeys[d] = new Journey((arrival - start) * 1000L, walkMetres, rides);
+        }
+        return journeys;
+    }
+
+    /**
+     * Finds the travel time from one origin to each of many destinations for each of a series of departure times,
+     * searching to every stop from the latest departure first
+     * @return travel time in ms for each destination and departure time, or -1 where no journey was found
+     */
+    long[][] routeRangeFromOrigin(QueryResult originSnap, List<StopWalks> destinationWalks, Instant firstDeparture,
+                                  int stepSeconds, int steps) {
+        StopWalks access = walkToStops(originSnap);
+        RaptorSearch search = searches.get();
+        search.reset();
+        int first = timetable.toServiceSeconds(firstDeparture);
+        long[][] travelTimes = new long[destinationWalks.size()][steps];
+        for (int step = steps - 1; step >= 0; step--) {
+            int departure = first + step * stepSeconds;
+            search.run(departure, access.stops, access.seconds, null);
+            for (int d = 0; d < travelTimes.length; d++) {
+                StopWalks egress = destinationWalks.get(d);
+                int best = egress.bestStop(search);
+                travelTimes[d][step] = best < 0 ? -1 : (search.getBestTransitArrival(egress.stops[best])
+                        + egress.seconds[best] - departure) * 1000L;
+            }
+        }
+        return travelTimes;
+    }
+
+    /**
+     * Walks out from a snapped point over the foot network to every stop within the walking limit
+     * @param snap private copy of the point's snap to the foot network
+     */
+    StopWalks walkToStops(QueryResult snap) {
+        QueryGraph queryGraph = new QueryGraph(graph);
+        queryGraph.lookup(Collections.singletonList(snap));
+        OneToManySearch walk = walks.get();
+        walk.setTimeLimit((long) (maxWalkMetres / RaptorTimetable.WALK_SPEED_MPS * 1000));
+        walk.search(queryGraph.createEdgeExplorer(footOutFilter), footWeighting, queryGraph.getNodes(),
+                snap.getClosestNode(), null);
+
+        IntArrayList stops = new IntArrayList();
+        IntArrayList seconds = new IntArrayList();
+        IntArrayList metres = new IntArrayList();
+        for (int stop = 0; stop < stopNodes.length; stop++) {
+            int node = stopNodes[stop];
+            if (node >= 0 && walk.isReached(node) && walk.getDistance(node) <= maxWalkMetres) {
+                stops.add(stop);
+                seconds.add((int) Math.ceil(walk.getTime(node) / 1000.0));
+                metres.add((int) Math.round(walk.getDistance(node)));
+            }
+        }
+        return new StopWalks(stops.toArray(), seconds.toArray(), metres.toArray());
+    }
+
+    /**
+     * Stops reachable on foot from one point, with the walking time (s) and distance (m) to each
+     */
+    static class StopWalks {
+        private final int[] stops;
+        private final int[] seconds;
+        private final int[] metres;
+
+        StopWalks(int[] stops, int[] seconds, int[] metres) {
+            this.stops = stops;
+            this.seconds = seconds;
+            this.metres = metres;
+        }
+
+        int[] secondsByStop(int stopCount) {
+            int[] byStop = new int[stopCount];
+            Arrays.fill(byStop, -1);
+            for (int i = 0; i < stops.length; i++) {
+                byStop[stops[i]] = seconds[i];
+            }
+            return byStop;
+        }
+
+        /**
+         * @return index of the stop from which the point is reached soonest after the search, or -1
+         */
+        private int bestStop(RaptorSearch search) {
+            int best = -1;
+            long bestArrival = RaptorSearch.UNREACHED;
+            for (int i = 0; i < stops.length; i++) {
+                int arrival = search.getBestTransitArrival(stops[i]);
+                if (arrival != RaptorSearch.UNREACHED && (long) arrival + seconds[i] < bestArrival) {
+                    bestArrival = (long) arrival + seconds[i];
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        int metresTo(int stop) {
+            for (int i = 0; i < stops.length; i++) {
+                if (stops[i] == stop) {
+                    return metres[i];
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Summary of the best journey between a pair of points
+     */
+    static class Journey {
+        private final long time;
+        private final double walkDistance;
+        private final int transitLegs;
+
+        Journey(long time, double walkDistance, int transitLegs) {
+            this.time = time;
+            this.walkDistance = walkDistance;
+            this.transitLegs = transitLegs;
+        }
+
+        /**
+         * @return ms from the requested departure time to arrival at the destination
+         */
+        long getTime() {
+            return time;
+        }
+
+        /**
+         * @return metres walked to, between and from the vehicles
+         */
+        double getWalkDistance() {
+            return walkDistance;
+        }
+
+        int getTransitLegs() {
+            return transitLegs;
+        }
+    }
+}
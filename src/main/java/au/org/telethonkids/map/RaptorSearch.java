@@ -0,0 +1,282 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Round-based public transit search (RAPTOR) over a RaptorTimetable. Round k finds the earliest arrival at every
+ * stop using at most k vehicles, by scanning each route that serves a stop improved in the previous round once,
+ * in stop order, and then relaxing the walking transfers from the stops it improved.
+ *
+ * Labels are kept per round so that journeys can be traced back afterwards. They are not cleared between calls to
+ * run() unless reset() is called, which allows a range of departure times to be searched latest first with each
+ * earlier departure reusing the arrivals already found for later ones (rRAPTOR). Instances hold arrays sized to the
+ * timetable and are not thread safe, so keep one per thread.
+ */
+class RaptorSearch {
+    static final int UNREACHED = Integer.MAX_VALUE;
+
+    private final RaptorTimetable timetable;
+    private final int stopCount;
+    private final int maxRides;
+    private final int blockedRouteType;
+
+    // per round k and stop s, at k * stopCount + s
+    private final int[] arrivals;
+    private final int[] rideArrivals;
+    private final int[] boardStops;
+    private final int[] transferFrom;
+    private final int[] transferMetres;
+    // earliest arrival at each stop using at least one vehicle, and the round it was found in
+    private final int[] bestTransit;
+    private final int[] bestTransitRound;
+
+    private final int[] routeFirstPosition;
+    private final IntArrayList touchedRoutes = new IntArrayList();
+    private BitSet marked;
+    private BitSet nextMarked;
+    private final BitSet transferMarked;
+
+    private int bestTarget;
+    private int bestRound;
+    private int bestEgressStop;
+
+    /**
+     * @param timetable services to search
+     * @param maxRides most vehicles a journey may use, i.e. transfers allowed + 1
+     * @param blockedRouteType GTFS route_type that may not be used, or -1 to allow all
+     */
+    RaptorSearch(RaptorTimetable timetable, int maxRides, int blockedRouteType) {
+        this.timetable = timetable;
+        this.stopCount = timetable.getStopCount();
+        this.maxRides = maxRides;
+        this.blockedRouteType = blockedRouteType;
+        int labels = (maxRides + 1) * stopCount;
+        this.arrivals = new int[labels];
+        this.rideArrivals = new int[labels];
+        this.boardStops = new int[labels];
+        this.transferFrom = new int[labels];
+        this.transferMetres = new int[labels];
+        this.bestTransit = new int[stopCount];
+        this.bestTransitRound = new int[stopCount];
+        this.routeFirstPosition = new int[timetable.getRouteCount()];
+        Arrays.fill(routeFirstPosition, -1);
+        this.marked = new BitSet(stopCount);
+        this.nextMarked = new BitSet(stopCount);
+        this.transferMarked = new BitSet(stopCount);
+        reset();
+    }
+
+    /**
+     * Forgets all labels, before searching for a new origin or destination
+     */
+    void reset() {
+        // routes left queued by a search that was abandoned part way through a round
+        for (int i = 0; i < touchedRoutes.size(); i++) {
+            routeFirstPosition[touchedRoutes.get(i)] = -1;
+        }
+        touchedRoutes.clear();
+        Arrays.fill(arrivals, UNREACHED);
+        Arrays.fill(bestTransit, UNREACHED);
+        bestTarget = UNREACHED;
+        bestRound = -1;
+        bestEgressStop = -1;
+    }
+
+    /**
+     * Searches from the access stops at the given departure time
+     * @param departure seconds since the start of the timetable's service day
+     * @param accessStops stops that can be walked to from the origin
+     * @param accessSeconds walking time to each access stop
+     * @param egressSeconds walking time from each stop to the destination, or -1 for stops out of reach; null
+     *                      to search to every stop without stopping early for a destination
+     * @return earliest arrival at the destination using at least one vehicle, or UNREACHED
+     */
+    int run(int departure, int[] accessStops, int[] accessSeconds, int[] egressSeconds) {
+        marked.clear();
+        for (int i = 0; i < accessStops.length; i++) {
+            int stop = accessStops[i];
+            int arrival = departure + accessSeconds[i];
+            if (arrival < arrivals[stop]) {
+                arrivals[stop] = arrival;
+                transferFrom[stop] = -1;
+                marked.set(stop);
+            }
+        }
+
+        for (int k = 1; k <= maxRides && !marked.isEmpty(); k++) {
+            int round = k * stopCount;
+            int previous = round - stopCount;
+            // a stop reached with fewer vehicles is also reached with this many
+            for (int s = 0; s < stopCount; s++) {
+                if (arrivals[previous + s] < arrivals[round + s]) {
+                    arrivals[round + s] = arrivals[previous + s];
+                }
+            }
+
+            collectRoutes();
+            nextMarked.clear();
+            for (int i = 0; i < touchedRoutes.size(); i++) {
+                if ((i & 255) == 0) {
+                    RoutingExecutor.checkDeadline();
+                }
+                int route = touchedRoutes.get(i);
+                scanRoute(route, routeFirstPosition[route], round, previous);
+                routeFirstPosition[route] = -1;
+            }
+            relaxTransfers(round);
+
+            for (int s = nextMarked.nextSetBit(0); s >= 0; s = nextMarked.nextSetBit(s + 1)) {
+                if (arrivals[round + s] < bestTransit[s]) {
+                    bestTransit[s] = arrivals[round + s];
+                    bestTransitRound[s] = k;
+                }
+                if (egressSeconds != null && egressSeconds[s] >= 0 && arrivals[round + s] != UNREACHED
+                        && arrivals[round + s] + egressSeconds[s] < bestTarget) {
+                    bestTarget = arrivals[round + s] + egressSeconds[s];
+                    bestRound = k;
+                    bestEgressStop = s;
+                }
+            }
+            BitSet swap = marked;
+            marked = nextMarked;
+            nextMarked = swap;
+        }
+        return bestTarget;
+    }
+
+    private void collectRoutes() {
+        touchedRoutes.clear();
+        for (int s = marked.nextSetBit(0); s >= 0; s = marked.nextSetBit(s + 1)) {
+            for (int i = timetable.getStopRoutesStart(s); i < timetable.getStopRoutesEnd(s); i++) {
+                int route = timetable.getStopRoute(i);
+                if (blockedRouteType >= 0 && timetable.getRouteType(route) == blockedRouteType) {
+                    continue;
+                }
+                int position = timetable.getStopRoutePosition(i);
+                if (routeFirstPosition[route] < 0) {
+                    touchedRoutes.add(route);
+                    routeFirstPosition[route] = position;
+                }
+                else if (position < routeFirstPosition[route]) {
+                    routeFirstPosition[route] = position;
+                }
+            }
+        }
+    }
+
+    private void scanRoute(int route, int firstPosition, int round, int previous) {
+        int trip = -1;
+        int boardStop = -1;
+        int stops = timetable.getRouteStopCount(route);
+        for (int p = firstPosition; p < stops; p++) {
+            int stop = timetable.getRouteStop(route, p);
+            if (trip >= 0) {
+                int arrival = timetable.getArrival(route, trip, p);
+                if (arrival < arrivals[round + stop] && arrival < bestTarget) {
+                    arrivals[round + stop] = arrival;
+                    rideArrivals[round + stop] = arrival;
+                    boardStops[round + stop] = boardStop;
+                    transferFrom[round + stop] = -1;
+                    nextMarked.set(stop);
+                }
+            }
+            int reached = arrivals[previous + stop];
+            if (reached != UNREACHED && (trip < 0 || reached <= timetable.getDeparture(route, trip, p))) {
+                int earliest = timetable.findEarliestTrip(route, p, reached);
+                if (earliest >= 0 && (trip < 0 || earliest < trip)) {
+                    trip = earliest;
+                    boardStop = stop;
+                }
+            }
+        }
+    }
+
+    private void relaxTransfers(int round) {
+        transferMarked.clear();
+        for (int s = nextMarked.nextSetBit(0); s >= 0; s = nextMarked.nextSetBit(s + 1)) {
+            int from = rideArrivals[round + s];
+            for (int i = timetable.getTransfersStart(s); i < timetable.getTransfersEnd(s); i++) {
+                if (timetable.isTransferTooLong(i)) {
+                    break;
+                }
+                int target = timetable.getTransferTarget(i);
+                int arrival = from + timetable.getTransferSeconds(i);
+                if (arrival < arrivals[round + target] && arrival < bestTarget) {
+                    arrivals[round + target] = arrival;
+                    transferFrom[round + target] = s;
+                    transferMetres[round + target] = timetable.getTransferMetres(i);
+                    transferMarked.set(target);
+                }
+            }
+        }
+        nextMarked.or(transferMarked);
+    }
+
+    /**
+     * @return number of vehicles used by the best journey found since the last reset, or 0 if there is none
+     */
+    int getBestRides() {
+        return bestRound < 0 ? 0 : bestRound;
+    }
+
+    /**
+     * @return the stop at which the best journey leaves its last vehicle (or transfer), or -1
+     */
+    int getBestEgressStop() {
+        return bestEgressStop;
+    }
+
+    /**
+     * @return earliest arrival at the stop using at least one vehicle since the last reset, or UNREACHED
+     */
+    int getBestTransitArrival(int stop) {
+        return bestTransit[stop];
+    }
+
+    /**
+     * Traces the best journey back to its origin
+     * @return the access stop of the best journey, with the walking distance of its transfers added to
+     * transferMetresOut[0], or -1 if there is no journey
+     */
+    int traceBest(int[] transferMetresOut) {
+        if (bestRound < 0) {
+            return -1;
+        }
+        return trace(bestRound, bestEgressStop, transferMetresOut);
+    }
+
+    /**
+     * Traces the journey behind getBestTransitArrival(stop) back to its origin
+     * @return number of vehicles used, with the walking distance of its transfers added to transferMetresOut[0]
+     * and its access stop put in transferMetresOut[1], or 0 if the stop was not reached
+     */
+    int traceToStop(int stop, int[] transferMetresOut) {
+        if (bestTransit[stop] == UNREACHED) {
+            return 0;
+        }
+        transferMetresOut[1] = trace(bestTransitRound[stop], stop, transferMetresOut);
+        return bestTransitRound[stop];
+    }
+
+    private int trace(int k, int stop, int[] transferMetresOut) {
+        while (k > 0) {
+            int label = k * stopCount + stop;
+            if (arrivals[label] == arrivals[label - stopCount]) {
+                // carried over from the round before
+                k--;
+                continue;
+            }
+            if (transferFrom[label] >= 0) {
+                transferMetresOut[0] += transferMetres[label];
+                stop = transferFrom[label];
+                label = k * stopCount + stop;
+            }
+            stop = boardStops[label];
+            k--;
+        }
+        return stop;
+    }
+}
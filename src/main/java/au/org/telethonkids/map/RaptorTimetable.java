@@ -0,0 +1,479 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Agency;
+import com.conveyal.gtfs.model.Service;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+import com.graphhopper.reader.gtfs.GtfsStorage;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The scheduled services of one day, taken from the GTFS feeds loaded into a GtfsStorage and packed into flat
+ * primitive arrays for round-based (RAPTOR) routing.
+ *
+ * Trips are grouped into routes: sets of trips that call at exactly the same sequence of stops and never overtake
+ * each other, so that the earliest trip that can be boarded at any stop of a route can be found by binary search.
+ * Times are whole seconds since midnight at the start of the service day, and trips running past midnight from
+ * the day before are included with their times shifted back by a day.
+ */
+class RaptorTimetable {
+    /**
+     * Walking speed used for transfers between stops, matching the default speed of the foot flag encoder
+     */
+    static final double WALK_SPEED_MPS = 5 / 3.6;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final long serviceDayStart;
+    private final Stops stops;
+    // route r calls at routeStops[routeStopStart[r]] .. routeStops[routeStopStart[r + 1] - 1]
+    private final int[] routeStopStart;
+    private final int[] routeStops;
+    private final int[] routeTypes;
+    private final int[] routeTripCounts;
+    // the time at position p of trip t of route r is at routeTimeStart[r] + t * (stops on r) + p
+    private final int[] routeTimeStart;
+    private final int[] arrivals;
+    private final int[] departures;
+    // the routes calling at stop s, and the position of s on each, are at stopRouteStart[s] .. [s + 1] - 1
+    private final int[] stopRouteStart;
+    private final int[] stopRoutes;
+    private final int[] stopRoutePositions;
+    private final StopTransferTable transfers;
+    private final double maxTransferMetres;
+
+    private RaptorTimetable(long serviceDayStart, Stops stops, int[] routeStopStart, int[] routeStops,
+                            int[] routeTypes, int[] routeTripCounts, int[] routeTimeStart, int[] arrivals,
+                            int[] departures, StopTransferTable transfers, double maxTransferMetres) {
+        this.serviceDayStart = serviceDayStart;
+        this.stops = stops;
+        this.routeStopStart = routeStopStart;
+        this.routeStops = routeStops;
+        this.routeTypes = routeTypes;
+        this.routeTripCounts = routeTripCounts;
+        this.routeTimeStart = routeTimeStart;
+        this.arrivals = arrivals;
+        this.departures = departures;
+        this.transfers = transfers;
+        this.maxTransferMetres = maxTransferMetres;
+
+        int stopCount = stops.size();
+        int[] counts = new int[stopCount + 1];
+        for (int r = 0; r < routeTypes.length; r++) {
+            for (int i = routeStopStart[r]; i < routeStopStart[r + 1]; i++) {
+                counts[routeStops[i] + 1]++;
+            }
+        }
+        for (int s = 0; s < stopCount; s++) {
+            counts[s + 1] += counts[s];
+        }
+        this.stopRouteStart = counts.clone();
+        this.stopRoutes = new int[routeStops.length];
+        this.stopRoutePositions = new int[routeStops.length];
+        for (int r = 0; r < routeTypes.length; r++) {
+            for (int i = routeStopStart[r]; i < routeStopStart[r + 1]; i++) {
+                int slot = counts[routeStops[i]]++;
+                stopRoutes[slot] = r;
+                stopRoutePositions[slot] = i - routeStopStart[r];
+            }
+        }
+    }
+
+    /**
+     * Builds the timetable for the service day on which the given departure time falls, in the time zone of the
+     * first agency of the first feed
+     * @param gtfsStorage loaded transit data
+     * @param stops readStops(gtfsStorage)
+     * @param transfers walking transfers between the stops
+     * @param departure any time on the day to build
+     * @param maxTransferMetres transfers longer than this are not used, even if they are in the transfer table
+     */
+    static RaptorTimetable build(GtfsStorage gtfsStorage, Stops stops, StopTransferTable transfers,
+                                 Instant departure, double maxTransferMetres) {
+        Map<String, GTFSFeed> feeds = gtfsStorage.getGtfsFeeds();
+        ZoneId zone = null;
+        for (GTFSFeed feed : feeds.values()) {
+            for (Agency agency : feed.agency.values()) {
+                if (zone == null && agency.agency_timezone != null) {
+                    zone = ZoneId.of(agency.agency_timezone);
+                }
+            }
+        }
+        if (zone == null) {
+            zone = ZoneId.of("UTC");
+        }
+        LocalDate day = departure.atZone(zone).toLocalDate();
+        long serviceDayStart = day.atStartOfDay(zone).toEpochSecond();
+
+        Map<String, Integer> stopIndex = new HashMap<>();
+        for (int s = 0; s < stops.size(); s++) {
+            stopIndex.put(stops.getId(s), s);
+        }
+        // trips grouped by GTFS route and stop sequence
+        Map<String, PatternTrips> patterns = new LinkedHashMap<>();
+        int trips = 0;
+        for (Map.Entry<String, GTFSFeed> entry : feeds.entrySet()) {
+            String feedId = entry.getKey();
+            GTFSFeed feed = entry.getValue();
+            for (Trip trip : feed.trips.values()) {
+                Service service = feed.services.get(trip.service_id);
+                if (service == null) {
+                    continue;
+                }
+                boolean today = service.activeOn(day);
+                boolean yesterday = service.activeOn(day.minusDays(1));
+                if (!today && !yesterday) {
+                    continue;
+                }
+                IntArrayList tripStops = new IntArrayList();
+                IntArrayList arr = new IntArrayList();
+                IntArrayList dep = new IntArrayList();
+                boolean complete = true;
+                for (StopTime stopTime : feed.getOrderedStopTimesForTrip(trip.trip_id)) {
+                    Integer stop = stopIndex.get(feedId + ":" + stopTime.stop_id);
+                    // frequency based trips and trips needing interpolation have missing times
+                    if (stop == null || stopTime.arrival_time < 0 || stopTime.departure_time < 0) {
+                        complete = false;
+                        break;
+                    }
+                    tripStops.add(stop);
+                    arr.add(stopTime.arrival_time);
+                    dep.add(stopTime.departure_time);
+                }
+                if (!complete || tripStops.size() < 2) {
+                    continue;
+                }
+                int routeType = feed.routes.containsKey(trip.route_id) ? feed.routes.get(trip.route_id).route_type : -1;
+                PatternTrips pattern = patterns.computeIfAbsent(
+                        feedId + ":" + trip.route_id + ":" + Arrays.toString(tripStops.toArray()),
+                        key -> new PatternTrips(tripStops.toArray(), routeType));
+                if (today) {
+                    pattern.add(arr.toArray(), dep.toArray(), 0);
+                    trips++;
+                }
+                if (yesterday && arr.get(arr.size() - 1) >= SECONDS_PER_DAY) {
+                    pattern.add(arr.toArray(), dep.toArray(), -SECONDS_PER_DAY);
+                    trips++;
+                }
+            }
+        }
+
+        List<PatternTrips> routes = splitFifo(patterns.values());
+        System.out.println("*** Timetable for " + day + ": " + stops.size() + " stops, " + routes.size()
+                + " routes, " + trips + " trips ***");
+        return pack(serviceDayStart, stops, routes, transfers, maxTransferMetres);
+    }
+
+    /**
+     * Builds a timetable from trips given directly rather than read from GTFS feeds
+     * @param patternStops stops visited by each pattern, in order
+     * @param patternRouteTypes GTFS route_type of each pattern
+     * @param patternTrips trips of each pattern, each as {arrivals, departures} in seconds since serviceDayStart
+     */
+    static RaptorTimetable fromTrips(long serviceDayStart, Stops stops, List<int[]> patternStops,
+                                     int[] patternRouteTypes, List<List<int[][]>> patternTrips,
+                                     StopTransferTable transfers, double maxTransferMetres) {
+        List<PatternTrips> patterns = new ArrayList<>();
+        for (int p = 0; p < patternStops.size(); p++) {
+            PatternTrips pattern = new PatternTrips(patternStops.get(p), patternRouteTypes[p]);
+            for (int[][] trip : patternTrips.get(p)) {
+                pattern.add(trip[0].clone(), trip[1].clone(), 0);
+            }
+            patterns.add(pattern);
+        }
+        return pack(serviceDayStart, stops, splitFifo(patterns), transfers, maxTransferMetres);
+    }
+
+    /**
+     * @return the patterns split into routes whose trips do not overtake one another
+     */
+    private static List<PatternTrips> splitFifo(Collection<PatternTrips> patterns) {
+        List<PatternTrips> routes = new ArrayList<>();
+        for (PatternTrips pattern : patterns) {
+            routes.addAll(pattern.splitFifo());
+        }
+        return routes;
+    }
+
+    /**
+     * Packs the routes into flat arrays
+     */
+    private static RaptorTimetable pack(long serviceDayStart, Stops stops, List<PatternTrips> routes,
+                                        StopTransferTable transfers, double maxTransferMetres) {
+        int[] routeStopStart = new int[routes.size() + 1];
+        int[] routeTimeStart = new int[routes.size()];
+        int[] routeTypes = new int[routes.size()];
+        int[] routeTripCounts = new int[routes.size()];
+        int stopSlots = 0;
+        int timeSlots = 0;
+        for (int r = 0; r < routes.size(); r++) {
+            PatternTrips route = routes.get(r);
+            routeStopStart[r] = stopSlots;
+            routeTimeStart[r] = timeSlots;
+            routeTypes[r] = route.routeType;
+            routeTripCounts[r] = route.trips.size();
+            stopSlots += route.stops.length;
+            timeSlots += route.stops.length * route.trips.size();
+        }
+        routeStopStart[routes.size()] = stopSlots;
+        int[] routeStops = new int[stopSlots];
+        int[] arrivals = new int[timeSlots];
+        int[] departures = new int[timeSlots];
+        for (int r = 0; r < routes.size(); r++) {
+            PatternTrips route = routes.get(r);
+            System.arraycopy(route.stops, 0, routeStops, routeStopStart[r], route.stops.length);
+            int offset = routeTimeStart[r];
+            for (int[][] trip : route.trips) {
+                System.arraycopy(trip[0], 0, arrivals, offset, route.stops.length);
+                System.arraycopy(trip[1], 0, departures, offset, route.stops.length);
+                offset += route.stops.length;
+            }
+        }
+
+        return new RaptorTimetable(serviceDayStart, stops, routeStopStart, routeStops, routeTypes, routeTripCounts,
+                routeTimeStart, arrivals, departures, transfers, maxTransferMetres);
+    }
+
+    /**
+     * Reads every stop of the loaded feeds, in the order used to number them in the timetable and transfer table
+     */
+    static Stops readStops(GtfsStorage gtfsStorage) {
+        List<String> ids = new ArrayList<>();
+        DoubleArrayList lats = new DoubleArrayList();
+        DoubleArrayList lons = new DoubleArrayList();
+        for (Map.Entry<String, GTFSFeed> entry : gtfsStorage.getGtfsFeeds().entrySet()) {
+            for (Stop stop : entry.getValue().stops.values()) {
+                ids.add(entry.getKey() + ":" + stop.stop_id);
+                lats.add(stop.stop_lat);
+                lons.add(stop.stop_lon);
+            }
+        }
+        return new Stops(ids.toArray(new String[0]), lats.toArray(), lons.toArray());
+    }
+
+    /**
+     * @return the given time as seconds since the start of this timetable's service day
+     */
+    int toServiceSeconds(Instant time) {
+        return (int) (time.getEpochSecond() - serviceDayStart);
+    }
+
+    int getStopCount() {
+        return stops.size();
+    }
+
+    String getStopId(int stop) {
+        return stops.getId(stop);
+    }
+
+    double getStopLat(int stop) {
+        return stops.getLat(stop);
+    }
+
+    double getStopLon(int stop) {
+        return stops.getLon(stop);
+    }
+
+    int getRouteCount() {
+        return routeTypes.length;
+    }
+
+    /**
+     * @return GTFS route_type of the route, or -1 if its GTFS route is missing
+     */
+    int getRouteType(int route) {
+        return routeTypes[route];
+    }
+
+    int getRouteStopCount(int route) {
+        return routeStopStart[route + 1] - routeStopStart[route];
+    }
+
+    int getRouteStop(int route, int position) {
+        return routeStops[routeStopStart[route] + position];
+    }
+
+    int getArrival(int route, int trip, int position) {
+        return arrivals[routeTimeStart[route] + trip * getRouteStopCount(route) + position];
+    }
+
+    int getDeparture(int route, int trip, int position) {
+        return departures[routeTimeStart[route] + trip * getRouteStopCount(route) + position];
+    }
+
+    /**
+     * @return the first trip of the route that can be boarded at the position at or after the given time, or -1
+     */
+    int findEarliestTrip(int route, int position, int time) {
+        int low = 0;
+        int high = routeTripCounts[route] - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getDeparture(route, mid, position) >= time) {
+                found = mid;
+                high = mid - 1;
+            }
+            else {
+                low = mid + 1;
+            }
+        }
+        return found;
+    }
+
+    int getStopRoutesStart(int stop) {
+        return stopRouteStart[stop];
+    }
+
+    int getStopRoutesEnd(int stop) {
+        return stopRouteStart[stop + 1];
+    }
+
+    int getStopRoute(int index) {
+        return stopRoutes[index];
+    }
+
+    int getStopRoutePosition(int index) {
+        return stopRoutePositions[index];
+    }
+
+    int getTransfersStart(int stop) {
+        return transfers.getStart(stop);
+    }
+
+    int getTransfersEnd(int stop) {
+        return transfers.getEnd(stop);
+    }
+
+    /**
+     * @return true if the transfer is too long to use. A stop's transfers are in order of distance, so all of
+     * its later transfers are too long as well.
+     */
+    boolean isTransferTooLong(int index) {
+        return transfers.getMetres(index) > maxTransferMetres;
+    }
+
+    int getTransferTarget(int index) {
+        return transfers.getTarget(index);
+    }
+
+    int getTransferSeconds(int index) {
+        return (int) Math.ceil(transfers.getMetres(index) / WALK_SPEED_MPS);
+    }
+
+    int getTransferMetres(int index) {
+        return transfers.getMetres(index);
+    }
+
+    /**
+     * Id, latitude and longitude of every stop, indexed by stop number
+     */
+    static class Stops {
+        private final String[] ids;
+        private final double[] lats;
+        private final double[] lons;
+
+        Stops(String[] ids, double[] lats, double[] lons) {
+            this.ids = ids;
+            this.lats = lats;
+            this.lons = lons;
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        String getId(int stop) {
+            return ids[stop];
+        }
+
+        double getLat(int stop) {
+            return lats[stop];
+        }
+
+        double getLon(int stop) {
+            return lons[stop];
+        }
+
+        /**
+         * @return hash of the stop ids in order, identifying the set of stops a transfer table was built for
+         */
+        long hash() {
+            long hash = 1;
+            for (String id : ids) {
+                hash = 31 * hash + id.hashCode();
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Trips of one GTFS route that share a stop sequence, gathered whilst reading the feed
+     */
+    private static class PatternTrips {
+        private final int[] stops;
+        private final int routeType;
+        // each trip is {arrivals, departures}
+        private final List<int[][]> trips = new ArrayList<>();
+
+        PatternTrips(int[] stops, int routeType) {
+            this.stops = stops;
+            this.routeType = routeType;
+        }
+
+        void add(int[] arrivals, int[] departures, int shift) {
+            for (int i = 0; i < arrivals.length; i++) {
+                arrivals[i] += shift;
+                departures[i] += shift;
+            }
+            trips.add(new int[][]{arrivals, departures});
+        }
+
+        /**
+         * @return the trips sorted by departure and divided into as few groups as possible in which no trip
+         * overtakes another
+         */
+        List<PatternTrips> splitFifo() {
+            trips.sort(Comparator.comparingInt(trip -> trip[1][0]));
+            List<PatternTrips> groups = new ArrayList<>();
+            for (int[][] trip : trips) {
+                PatternTrips group = null;
+                for (PatternTrips candidate : groups) {
+                    if (!overtakes(candidate.trips.get(candidate.trips.size() - 1), trip)) {
+                        group = candidate;
+                        break;
+                    }
+                }
+                if (group == null) {
+                    group = new PatternTrips(stops, routeType);
+                    groups.add(group);
+                }
+                group.trips.add(trip);
+            }
+            return groups;
+        }
+
+        private static boolean overtakes(int[][] earlier, int[][] later) {
+            for (int i = 0; i < earlier[0].length; i++) {
+                if (later[0][i] < earlier[0][i] || later[1][i] < earlier[1][i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package au.org.telethonkids.map;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.operation.polygonize.Polygonizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds isochrone polygons by rasterising the time band of every reached node onto a regular grid and tracing
+ * the band boundaries with marching squares, as a cheaper alternative to triangulating all of the nodes. The grid
+ * is walked once, emitting the boundary segments of every band together, and its size is capped so that the
+ * memory and time taken per origin are bounded whatever the time limit.
+ */
+public class RasterContourBuilder {
+    public static final double DEFAULT_CELL_METRES = 100;
+    // the grid is coarsened if needed so that neither side has more vertices than this
+    private static final int MAX_GRID_SIDE = 2048;
+    private static final double METRES_PER_DEGREE = 111320;
+
+    private final static GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private final double minLon;
+    private final double minLat;
+    private final double cellLon;
+    private final double cellLat;
+    private final int width;
+    private final int height;
+    // band of each grid vertex at y * width + x; the number of bands where nothing was reached
+    private final int[] values;
+
+    private RasterContourBuilder(double minLon, double minLat, double cellLon, double cellLat, int width, int height,
+                                 int[] values) {
+        this.minLon = minLon;
+        this.minLat = minLat;
+        this.cellLon = cellLon;
+        this.cellLat = cellLat;
+        this.width = width;
+        this.height = height;
+        this.values = values;
+    }
+
+    /**
+     * Same result as IsochroneGenerator.buildIsochronePolygons, from a raster rather than a triangulation
+     * @param lat origin latitude
+     * @param lon origin longitude
+     * @param isochrone coordinates reached within each time band, as from IsochroneGenerator.buildIsochrone
+     * @param cellMetres grid spacing
+     * @return outline of the main area reached within each band but the last, or null if there is none
+     */
+    public static ArrayList<Coordinate[]> buildIsochronePolygons(double lat, double lon,
+                                                                 List<List<Coordinate>> isochrone, double cellMetres) {
+        RasterContourBuilder raster = rasterise(lat, isochrone, cellMetres);
+        if (raster == null) {
+            return null;
+        }
+        List<List<LineString>> contours = raster.traceContours(isochrone.size() - 1);
+        Point origin = geometryFactory.createPoint(new Coordinate(lon, lat));
+        ArrayList<Coordinate[]> polygonShells = new ArrayList<>();
+        for (int level = 0; level < contours.size(); level++) {
+            MultiPolygon reached = raster.reachedFaces(contours.get(level), level);
+            Polygon mainPolygon = IsochroneGenerator.heuristicallyFindMainConnectedComponent(reached, origin);
+            if (mainPolygon == null) {
+                return null;
+            }
+            polygonShells.add(mainPolygon.getExteriorRing().getCoordinates());
+        }
+        return polygonShells;
+    }
+
+    /**
+     * Sets each grid vertex to the lowest band of the points nearest to it, then fills empty vertices next to
+     * reached ones so that the gaps between roads do not become holes
+     */
+    private static RasterContourBuilder rasterise(double lat, List<List<Coordinate>> isochrone, double cellMetres) {
+        double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        for (List<Coordinate> band : isochrone) {
+            for (Coordinate coord : band) {
+                minLon = Math.min(minLon, coord.x);
+                maxLon = Math.max(maxLon, coord.x);
+                minLat = Math.min(minLat, coord.y);
+                maxLat = Math.max(maxLat, coord.y);
+            }
+        }
+        if (minLon > maxLon) {
+            return null;
+        }
+        double cellLat = cellMetres / METRES_PER_DEGREE;
+        double cellLon = cellMetres / (METRES_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+        double scale = Math.max(1, Math.max((maxLon - minLon) / cellLon, (maxLat - minLat) / cellLat)
+                / (MAX_GRID_SIDE - 4));
+        cellLat *= scale;
+        cellLon *= scale;
+        // two vertices of padding on each side, so that the border stays empty after filling and every contour
+        // closes within the grid
+        minLon -= 2 * cellLon;
+        minLat -= 2 * cellLat;
+        int width = (int) Math.ceil((maxLon - minLon) / cellLon) + 3;
+        int height = (int) Math.ceil((maxLat - minLat) / cellLat) + 3;
+
+        int unreached = isochrone.size();
+        int[] values = new int[width * height];
+        Arrays.fill(values, unreached);
+        for (int band = 0; band < isochrone.size(); band++) {
+            for (Coordinate coord : isochrone.get(band)) {
+                int x = (int) Math.round((coord.x - minLon) / cellLon);
+                int y = (int) Math.round((coord.y - minLat) / cellLat);
+                int index = y * width + x;
+                if (band < values[index]) {
+                    values[index] = band;
+                }
+            }
+        }
+        int[] filled = values.clone();
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int index = y * width + x;
+                if (values[index] != unreached) {
+                    continue;
+                }
+                int lowest = unreached;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        lowest = Math.min(lowest, values[index + dy * width + dx]);
+                    }
+                }
+                filled[index] = lowest;
+            }
+        }
+        return new RasterContourBuilder(minLon, minLat, cellLon, cellLat, width, height, filled);
+    }
+
+    /**
+     * Marching squares over every cell of the grid, for all levels in the one pass
+     * @param levels number of contours; contour j separates bands <= j from bands > j
+     * @return the boundary segments of each contour
+     */
+    private List<List<LineString>> traceContours(int levels) {
+        List<List<LineString>> contours = new ArrayList<>(levels);
+        for (int j = 0; j < levels; j++) {
+            contours.add(new ArrayList<>());
+        }
+        for (int y = 0; y < height - 1; y++) {
+            for (int x = 0; x < width - 1; x++) {
+                int a = values[y * width + x];
+                int b = values[y * width + x + 1];
+                int c = values[(y + 1) * width + x + 1];
+                int d = values[(y + 1) * width + x];
+                int low = Math.min(Math.min(a, b), Math.min(c, d));
+                int high = Math.max(Math.max(a, b), Math.max(c, d));
+                for (int level = low; level < high && level < levels; level++) {
+                    addCellSegments(contours.get(level), x, y, a, b, c, d, level + 0.5);
+                }
+            }
+        }
+        return contours;
+    }
+
+    /**
+     * Adds the contour segments crossing one cell, whose corners are a (bottom left), b (bottom right),
+     * c (top right) and d (top left)
+     */
+    private void addCellSegments(List<LineString> segments, int x, int y, int a, int b, int c, int d,
+                                 double threshold) {
+        int cell = (a < threshold ? 1 : 0) | (b < threshold ? 2 : 0) | (c < threshold ? 4 : 0)
+                | (d < threshold ? 8 : 0);
+        if (cell == 0 || cell == 15) {
+            return;
+        }
+        // crossing points on the bottom, right, top and left edges; each is computed from its two vertices in
+        // the same order whichever of its cells asks, so that neighbouring segments join exactly
+        Coordinate bottom = crossing(x, y, a, x + 1, y, b, threshold);
+        Coordinate right = crossing(x + 1, y, b, x + 1, y + 1, c, threshold);
+        Coordinate top = crossing(x, y + 1, d, x + 1, y + 1, c, threshold);
+        Coordinate left = crossing(x, y, a, x, y + 1, d, threshold);
+        boolean centreInside = (a + b + c + d) / 4.0 < threshold;
+        switch (cell) {
+            case 1: case 14: addSegment(segments, left, bottom); break;
+            case 2: case 13: addSegment(segments, bottom, right); break;
+            case 3: case 12: addSegment(segments, left, right); break;
+            case 4: case 11: addSegment(segments, right, top); break;
+            case 6: case 9: addSegment(segments, bottom, top); break;
+            case 7: case 8: addSegment(segments, left, top); break;
+            case 5:
+                if (centreInside) {
+                    addSegment(segments, bottom, right);
+                    addSegment(segments, left, top);
+                }
+                else {
+                    addSegment(segments, left, bottom);
+                    addSegment(segments, right, top);
+                }
+                break;
+            case 10:
+                if (centreInside) {
+                    addSegment(segments, left, bottom);
+                    addSegment(segments, right, top);
+                }
+                else {
+                    addSegment(segments, bottom, right);
+                    addSegment(segments, left, top);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Coordinate crossing(int x1, int y1, int v1, int x2, int y2, int v2, double threshold) {
+        if (v1 == v2) {
+            return null;
+        }
+        double t = (threshold - v1) / (v2 - v1);
+        return new Coordinate(minLon + (x1 + t * (x2 - x1)) * cellLon, minLat + (y1 + t * (y2 - y1)) * cellLat);
+    }
+
+    private static void addSegment(List<LineString> segments, Coordinate from, Coordinate to) {
+        segments.add(geometryFactory.createLineString(new Coordinate[]{from, to}));
+    }
+
+    /**
+     * Polygonizes a contour's segments and keeps the faces that lie within the contour's bands
+     */
+    private MultiPolygon reachedFaces(List<LineString> segments, int level) {
+        Polygonizer polygonizer = new Polygonizer();
+        polygonizer.add(segments);
+        List<Polygon> reached = new ArrayList<>();
+        for (Object face : polygonizer.getPolygons()) {
+            Polygon polygon = (Polygon) face;
+            Point inside = polygon.getInteriorPoint();
+            if (valueAt(inside.getX(), inside.getY()) < level + 0.5) {
+                reached.add(polygon);
+            }
+        }
+        return geometryFactory.createMultiPolygon(reached.toArray(new Polygon[0]));
+    }
+
+    /**
+     * @return the band at a point, interpolated bilinearly between the surrounding grid vertices
+     */
+    private double valueAt(double lon, double lat) {
+        double gx = (lon - minLon) / cellLon;
+        double gy = (lat - minLat) / cellLat;
+        int x = Math.max(0, Math.min(width - 2, (int) Math.floor(gx)));
+        int y = Math.max(0, Math.min(height - 2, (int) Math.floor(gy)));
+        double fx = gx - x;
+        double fy = gy - y;
+        double bottom = values[y * width + x] * (1 - fx) + values[y * width + x + 1] * fx;
+        double top = values[(y + 1) * width + x] * (1 - fx) + values[(y + 1) * width + x + 1] * fx;
+        return bottom * (1 - fy) + top * fy;
+    }
+}
@@ -0,0 +1,291 @@
+package au.org.telethonkids.map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CSV output that many routing threads can write to without contending on the file. Records are handed over
+ * through a bounded queue to a single background thread, which does all of the CSV formatting and writes through a
+ * large buffer. Routing threads only wait if they get so far ahead of the disk that the queue fills up.
+ *
+ * A batch can carry the indices of the pairs it finishes, which are marked done in the run's checkpoint only once
+ * the batch has been written, and sync() reports how long the file was at the point it was flushed, so that a
+ * checkpoint can record exactly which rows belong to the pairs it has marked.
+ */
+class ResultWriter implements Closeable {
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+    // marks the end of the output; compared by identity
+    private static final List<Object[]> END = new ArrayList<>();
+
+    private final String file;
+    private final BlockingQueue<List<Object[]>> queue;
+    private final Thread writerThread;
+    private final CountingOutputStream bytesOut;
+    // length of the file before this writer added to it
+    private final long startLength;
+    private volatile IOException failure;
+    // marks the pairs finished by each batch done once it has been written
+    private volatile RunCheckpoint checkpoint;
+    // if set, every record written is counted in these metrics, as recordType or (if that is null) by its last column
+    private volatile RunMetrics metrics;
+    private volatile String recordType;
+
+    /**
+     * Creates (or overwrites) the file, or appends to it when resuming a run, and starts the background writer
+     * thread
+     * @param file path of the csv file to write
+     * @param append if true, add to the end of any existing file rather than overwriting it
+     * @param header column names, written only if the file is new or empty
+     * @throws IOException if the file cannot be created
+     */
+    ResultWriter(String file, boolean append, Object... header) throws IOException {
+        this.file = file;
+        this.queue = new ArrayBlockingQueue<>(DEFAULT_QUEUE_CAPACITY);
+        this.startLength = append ? new File(file).length() : 0;
+        boolean hasContent = startLength > 0;
+        this.bytesOut = new CountingOutputStream(new FileOutputStream(file, append));
+        CSVPrinter printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(bytesOut), WRITE_BUFFER_BYTES),
+                CSVFormat.DEFAULT);
+        if (!hasContent) {
+            printer.printRecord(header);
+        }
+        this.writerThread = new Thread(() -> drain(printer), "result-writer-" + file);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Counts each record in the run's metrics as it is written, and times the writing of each batch
+     * @param recordType what to count every record as, or null to count each by its last column (an error type)
+     */
+    void setMetrics(RunMetrics metrics, String recordType) {
+        this.recordType = recordType;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Marks the pairs carried by batches from writeAll(records, pairIndices) done in this checkpoint
+     */
+    void setCheckpoint(RunCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Queues one record for writing. Blocks only while the queue is full.
+     */
+    void write(Object... record) {
+        writeAll(Collections.singletonList(record));
+    }
+
+    /**
+     * Queues several records to be written together, e.g. a whole origin row, using a single queue slot
+     */
+    void writeAll(List<Object[]> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        put(records);
+    }
+
+    /**
+     * Queues the records of some finished pairs (possibly none at all), which are marked done in the checkpoint once
+     * the records have been written
+     */
+    void writeAll(List<Object[]> records, long[] pairIndices) {
+        put(new PairBatch(records, pairIndices));
+    }
+
+    private void put(List<Object[]> batch) {
+        if (failure != null) {
+            throw new UncheckedIOException("Writing to " + file + " has already failed", failure);
+        }
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted whilst queueing output for " + file, e);
+        }
+    }
+
+    /**
+     * Blocks until every record queued before this call has been written and flushed to the file
+     * @return length of the file once those records were flushed, before anything queued after this call
+     * @throws IOException if any write failed
+     */
+    long sync() throws IOException {
+        SyncMarker marker = new SyncMarker();
+        try {
+            queue.put(marker);
+            while (!marker.flushed.await(1, TimeUnit.SECONDS)) {
+                if (!writerThread.isAlive()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst flushing " + file, e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (marker.length < 0) {
+            throw new IOException("Writer for " + file + " stopped before flushing");
+        }
+        return marker.length;
+    }
+
+    /**
+     * Writes everything still queued, then flushes and closes the file
+     * @throws IOException if any write failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst closing " + file, e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void drain(CSVPrinter printer) {
+        List<List<Object[]>> batches = new ArrayList<>();
+        boolean ended = false;
+        try {
+            while (!ended) {
+                batches.add(queue.take());
+                queue.drainTo(batches);
+                for (List<Object[]> batch : batches) {
+                    if (batch == END) {
+                        ended = true;
+                        break;
+                    }
+                    if (batch instanceof SyncMarker) {
+                        printer.flush();
+                        SyncMarker marker = (SyncMarker) batch;
+                        marker.length = startLength + bytesOut.count;
+                        marker.flushed.countDown();
+                        continue;
+                    }
+                    RunMetrics runMetrics = metrics;
+                    long start = System.nanoTime();
+                    for (Object[] record : batch) {
+                        printer.printRecord(record);
+                        if (runMetrics != null) {
+                            runMetrics.count(recordType != null ? recordType
+                                    : String.valueOf(record[record.length - 1]));
+                        }
+                    }
+                    if (runMetrics != null) {
+                        runMetrics.recordSince(RunMetrics.WRITE, start);
+                    }
+                    if (batch instanceof PairBatch && checkpoint != null) {
+                        for (long pairIndex : ((PairBatch) batch).pairIndices) {
+                            checkpoint.markDone(pairIndex);
+                        }
+                    }
+                }
+                batches.clear();
+                // flush whenever the routing threads are not keeping us busy, so output on disk stays current
+                if (queue.isEmpty()) {
+                    printer.flush();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            // keep taking from the queue so that routing threads are never left blocked on a dead writer
+            if (batches.stream().noneMatch(batch -> batch == END)) {
+                discardUntilEnd();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                printer.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private void discardUntilEnd() {
+        try {
+            List<Object[]> batch;
+            while ((batch = queue.take()) != END) {
+                if (batch instanceof SyncMarker) {
+                    ((SyncMarker) batch).flushed.countDown();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Empty batch placed on the queue by sync(), which is released once everything ahead of it has been flushed
+     */
+    private static class SyncMarker extends ArrayList<Object[]> {
+        private final CountDownLatch flushed = new CountDownLatch(1);
+        // file length when flushed, or -1 if never flushed; published by the latch
+        private long length = -1;
+    }
+
+    /**
+     * Records together with the pairs they finish
+     */
+    private static class PairBatch extends ArrayList<Object[]> {
+        private final long[] pairIndices;
+
+        PairBatch(List<Object[]> records, long[] pairIndices) {
+            super(records);
+            this.pairIndices = pairIndices;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the file, which only the writer thread does
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
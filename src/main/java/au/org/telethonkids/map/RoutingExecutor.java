@@ -0,0 +1,162 @@
+package au.org.telethonkids.map;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Fixed pool of routing threads that the searches of a run are handed to, in place of parallel streams on the
+ * common ForkJoinPool, so that the number of threads can be set for the machine or container the run is on.
+ *
+ * Work is pulled from a lazy iterator no faster than the threads can take it, so at most threads + queueDepth
+ * items are in memory at once. Each item may be given a wall-clock budget: searches that we run ourselves call
+ * checkDeadline() as they go and stop with a RoutingTimeoutException once their item's budget is spent, and callers
+ * of searches that can't be interrupted (GraphHopper's own routing) call it once the search returns, so the result
+ * is treated the same way.
+ */
+class RoutingExecutor implements Closeable {
+    // how far through the current item's budget the calling thread is, if it is a routing thread
+    private static final ThreadLocal<Deadline> deadlines = ThreadLocal.withInitial(Deadline::new);
+
+    private final int threads;
+    private final int capacity;
+    private final long budgetNanos;
+    private final ThreadPoolExecutor pool;
+    private final Semaphore permits;
+
+    /**
+     * @param threads number of routing threads
+     * @param queueDepth number of items that may be waiting for a thread
+     * @param budgetMillis wall-clock time allowed for each item, or 0 for no limit
+     */
+    RoutingExecutor(int threads, int queueDepth, long budgetMillis) {
+        if (threads < 1 || queueDepth < 0 || budgetMillis < 0) {
+            throw new IllegalArgumentException("Routing threads must be at least 1, and queue depth and query "
+                    + "timeout must not be negative");
+        }
+        this.threads = threads;
+        this.capacity = threads + queueDepth;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.permits = new Semaphore(capacity);
+        AtomicInteger threadNumber = new AtomicInteger();
+        // the permits bound the number of queued items, so the queue itself need not be bounded
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "routing-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * @return executor configured by the run's RoutingThreads, RoutingQueueDepth and QueryTimeoutSeconds
+     */
+    static RoutingExecutor fromConfig(TravelTimeRunConfig config) {
+        RoutingExecutor executor = new RoutingExecutor(config.getRoutingThreads(), config.getRoutingQueueDepth(),
+                TimeUnit.SECONDS.toMillis(config.getQueryTimeoutSeconds()));
+        System.out.println("*** Routing with " + executor.threads + " threads, "
+                + (executor.budgetNanos == 0 ? "no time limit per query"
+                : config.getQueryTimeoutSeconds() + "s allowed per query") + " ***");
+        return executor;
+    }
+
+    /**
+     * Runs the task for every item on the routing threads, each within the per-item budget, and returns once all
+     * have finished. If a task throws, no further items are started and the first exception is rethrown here once
+     * the running ones are done; tasks should catch RoutingTimeoutException themselves to report what timed out.
+     */
+    <T> void forEach(Iterator<T> items, Consumer<? super T> task) {
+        run(items, task, budgetNanos);
+    }
+
+    /**
+     * As forEach, without the per-item budget, for preparatory work that must complete
+     */
+    <T> void forEachWithoutBudget(Iterator<T> items, Consumer<? super T> task) {
+        run(items, task, 0);
+    }
+
+    private <T> void run(Iterator<T> items, Consumer<? super T> task, long itemBudgetNanos) {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            while (items.hasNext() && failure.get() == null) {
+                T item = items.next();
+                permits.acquire();
+                pool.execute(() -> {
+                    Deadline deadline = deadlines.get();
+                    deadline.start(itemBudgetNanos);
+                    try {
+                        task.accept(item);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        deadline.clear();
+                        permits.release();
+                    }
+                });
+            }
+            // wait for the items still running
+            permits.acquire(capacity);
+            permits.release(capacity);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted whilst waiting for routing threads", e);
+        }
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Throws RoutingTimeoutException if the calling thread is running an item whose budget has been spent. Cheap
+     * enough to call every few hundred steps of a search; does nothing outside of forEach.
+     */
+    static void checkDeadline() {
+        Deadline deadline = deadlines.get();
+        if (deadline.active && System.nanoTime() - deadline.end > 0) {
+            throw new RoutingTimeoutException();
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private static class Deadline {
+        private boolean active;
+        private long end;
+
+        void start(long budgetNanos) {
+            active = budgetNanos > 0;
+            end = System.nanoTime() + budgetNanos;
+        }
+
+        void clear() {
+            active = false;
+        }
+    }
+
+    /**
+     * Thrown out of a search whose item has used up its time budget
+     */
+    static class RoutingTimeoutException extends RuntimeException {
+        RoutingTimeoutException() {
+            // the stack trace is never looked at, so skip filling it in
+            super("Query time budget exceeded", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package au.org.telethonkids.map;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Tracks which point pairs of a run have been completed, as one bit per pair index, and periodically saves that
+ * bitmap to disk so that a crashed or pre-empted run can be restarted without repeating finished pairs.
+ *
+ * The rows of each finished pair (or origin row of pairs) are handed over with complete(), and the pair is only
+ * marked done by the output writer once its rows have been written. A checkpoint is saved by briefly holding back
+ * new rows, flushing both writers, and recording how long each file was when flushed together with the pairs marked
+ * at that moment. The saved pairs therefore have exactly the rows within the saved lengths, and on resume the
+ * outputs are cut back to those lengths, so that the rows of pairs that will be routed again are not duplicated.
+ */
+class RunCheckpoint implements Closeable {
+    private static final int MAGIC = 0x43484b50;
+    private static final int VERSION = 1;
+
+    private final String checkpointFile;
+    private final long pairCount;
+    private final long fingerprint;
+    private final AtomicLongArray done;
+    private final boolean resuming;
+    private final boolean enabled;
+
+    // held (shared) while a unit's rows are queued, and exclusively while a checkpoint is taken
+    private final ReadWriteLock queueing = new ReentrantReadWriteLock();
+
+    private ResultWriter outWriter;
+    private ResultWriter errorWriter;
+    private ScheduledExecutorService scheduler;
+
+    private RunCheckpoint(String checkpointFile, long pairCount, long fingerprint, AtomicLongArray done,
+                          boolean resuming, boolean enabled) {
+        this.checkpointFile = checkpointFile;
+        this.pairCount = pairCount;
+        this.fingerprint = fingerprint;
+        this.done = done;
+        this.resuming = resuming;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return a checkpoint that tracks nothing, for runs that are not resumable
+     */
+    static RunCheckpoint disabled() {
+        return new RunCheckpoint(null, 0, 0, null, false, false);
+    }
+
+    /**
+     * Opens the checkpoint kept alongside the output file. If one exists from an earlier run over the same points,
+     * its completed pairs are loaded and the output files are truncated to the lengths they had when it was saved;
+     * otherwise a new, empty checkpoint is started.
+     * @param outputFile path of the results csv
+     * @param errorsFile path of the errors csv
+     * @param pairs all of the point pairs in the run
+     * @throws IOException if an existing checkpoint cannot be read or the outputs cannot be truncated
+     */
+    static RunCheckpoint open(String outputFile, String errorsFile, FromToPairs pairs) throws IOException {
+        return open(outputFile, errorsFile, pairs.size(), pairs.fingerprint());
+    }
+
+    /**
+     * As open(outputFile, errorsFile, pairs), for runs whose units of work are not point pairs (e.g. one
+     * isochrone per origin)
+     * @param pairCount number of units of work, each marked done by its index
+     * @param fingerprint hash identifying the run's inputs and the settings that shape its output, so that a
+     *                    checkpoint is not resumed by a different run
+     */
+    static RunCheckpoint open(String outputFile, String errorsFile, long pairCount, long fingerprint)
+            throws IOException {
+        String checkpointFile = outputFile + ".checkpoint";
+        int words = (int) ((pairCount + 63) / 64);
+
+        File existing = new File(checkpointFile);
+        if (existing.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(existing), 1 << 16))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || in.readLong() != pairCount || in.readLong() != fingerprint) {
+                    throw new InvalidObjectException("Checkpoint " + checkpointFile + " is from a run with different "
+                            + "points or settings; delete it (and the outputs) to start again");
+                }
+                long outputLength = in.readLong();
+                long errorsLength = in.readLong();
+                AtomicLongArray done = new AtomicLongArray(words);
+                for (int i = 0; i < words; i++) {
+                    done.set(i, in.readLong());
+                }
+                truncate(outputFile, outputLength);
+                truncate(errorsFile, errorsLength);
+                RunCheckpoint checkpoint = new RunCheckpoint(checkpointFile, pairCount, fingerprint, done, true, true);
+                System.out.println("*** Resuming from checkpoint: " + checkpoint.countDone() + " of " + pairCount
+                        + " pairs already done ***");
+                return checkpoint;
+            }
+        }
+        return new RunCheckpoint(checkpointFile, pairCount, fingerprint, new AtomicLongArray(words), false, true);
+    }
+
+    /**
+     * @return true if this run is continuing from a saved checkpoint, so outputs should be appended to
+     */
+    boolean isResuming() {
+        return resuming;
+    }
+
+    /**
+     * Sets the writers that complete() hands rows to, and starts saving the checkpoint every intervalSeconds. Call
+     * just before routing begins, inside the block that closes the checkpoint, so that the periodic saves never
+     * outlive a run that failed.
+     */
+    void start(ResultWriter outWriter, ResultWriter errorWriter, int intervalSeconds) {
+        this.outWriter = outWriter;
+        this.errorWriter = errorWriter;
+        if (!enabled) {
+            return;
+        }
+        outWriter.setCheckpoint(this);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                System.out.println("*** WARNING - could not save checkpoint " + checkpointFile + ": " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    boolean isDone(long pairIndex) {
+        if (!enabled) {
+            return false;
+        }
+        return (done.get((int) (pairIndex >>> 6)) & (1L << pairIndex)) != 0;
+    }
+
+    /**
+     * Queues the rows of some finished pairs, which are marked done once they have been written
+     * @param results rows for the results file
+     * @param errors rows for the errors file
+     * @param pairIndices every pair finished, whether or not it has rows
+     */
+    void complete(List<Object[]> results, List<Object[]> errors, long... pairIndices) {
+        if (!enabled) {
+            outWriter.writeAll(results);
+            errorWriter.writeAll(errors);
+            return;
+        }
+        queueing.readLock().lock();
+        try {
+            errorWriter.writeAll(errors);
+            outWriter.writeAll(results, pairIndices);
+        } finally {
+            queueing.readLock().unlock();
+        }
+    }
+
+    void complete(Rows rows, long... pairIndices) {
+        complete(rows.results, rows.errors, pairIndices);
+    }
+
+    /**
+     * Marks a pair as finished. Called by the results writer once the pair's rows have been written.
+     */
+    void markDone(long pairIndex) {
+        if (!enabled) {
+            return;
+        }
+        int word = (int) (pairIndex >>> 6);
+        long bit = 1L << pairIndex;
+        long current;
+        do {
+            current = done.get(word);
+        } while ((current & bit) == 0 && !done.compareAndSet(word, current, current | bit));
+    }
+
+    long countDone() {
+        long count = 0;
+        for (int i = 0; i < done.length(); i++) {
+            count += Long.bitCount(done.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Stops the periodic saves and saves a final checkpoint. Call before closing the writers.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!enabled || scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        save();
+    }
+
+    private synchronized void save() throws IOException {
+        long outputLength;
+        long errorsLength;
+        long[] snapshot = new long[done.length()];
+        // with no more rows being queued, once both writers have flushed everything queued so far the pairs marked
+        // done are exactly those whose rows are within the flushed lengths
+        queueing.writeLock().lock();
+        try {
+            errorsLength = errorWriter.sync();
+            outputLength = outWriter.sync();
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = done.get(i);
+            }
+        } finally {
+            queueing.writeLock().unlock();
+        }
+
+        Path target = Paths.get(checkpointFile);
+        Path temp = Paths.get(checkpointFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(pairCount);
+            out.writeLong(fingerprint);
+            out.writeLong(outputLength);
+            out.writeLong(errorsLength);
+            for (long word : snapshot) {
+                out.writeLong(word);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The result and error rows of one pair, collected as it is routed and handed over together with complete()
+     */
+    static class Rows {
+        private final List<Object[]> results = new ArrayList<>(1);
+        private final List<Object[]> errors = new ArrayList<>(1);
+
+        void result(Object... record) {
+            results.add(record);
+        }
+
+        void error(Object... record) {
+            errors.add(record);
+        }
+    }
+
+    private static void truncate(String file, long length) throws IOException {
+        File f = new File(file);
+        if (!f.exists()) {
+            if (length > 0) {
+                throw new InvalidObjectException("Output " + file + " is missing but the checkpoint says it had "
+                        + length + " bytes");
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package au.org.telethonkids.map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress and performance of a long routing run: how many pairs (or origins) are done and at what rate, with an
+ * estimate of the time left; how many results and errors of each type have been written; latency histograms for
+ * snapping points, routing and writing; and the heap in use. Everything is recorded with LongAdders so that the
+ * routing threads never contend on it, and heap use is read from the memory MXBean without forcing a GC.
+ *
+ * A background thread reports every few seconds to the console and appends the same figures, one JSON object per
+ * line, to a metrics file, so a run can be followed (or plotted) while it is going.
+ */
+class RunMetrics implements Closeable {
+    static final String SNAP = "snap";
+    static final String ROUTE = "route";
+    static final String WRITE = "write";
+    // count of records written to the output file; errors are counted by their error type
+    static final String RESULT = "result";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final String unit;
+    private final long total;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder done = new LongAdder();
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ScheduledExecutorService reporter;
+    private final Writer metricsOut;
+    private long lastReportNanos = startNanos;
+    private long lastReportDone;
+
+    /**
+     * @param unit what is counted as done, e.g. "pairs"
+     * @param total how many there are to do in this run
+     * @param alreadyDone how many of them were done by an earlier run that this one resumes
+     * @param metricsFile file to append a JSON line to at each report, or null for the console only
+     * @param intervalSeconds time between reports, or 0 to report only at the end
+     */
+    RunMetrics(String unit, long total, long alreadyDone, String metricsFile, int intervalSeconds)
+            throws IOException {
+        this.unit = unit;
+        this.total = total;
+        this.done.add(alreadyDone);
+        this.lastReportDone = alreadyDone;
+        this.metricsOut = metricsFile == null ? null : new BufferedWriter(new FileWriter(metricsFile, true));
+        if (intervalSeconds > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "run-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+        else {
+            reporter = null;
+        }
+    }
+
+    /**
+     * @return metrics for the run as configured by MetricsIntervalSeconds and MetricsFile
+     */
+    static RunMetrics fromConfig(TravelTimeRunConfig config, String unit, long total, long alreadyDone)
+            throws IOException {
+        return new RunMetrics(unit, total, alreadyDone, config.getMetricsFile(), config.getMetricsIntervalSeconds());
+    }
+
+    void addDone(long count) {
+        done.add(count);
+    }
+
+    /**
+     * Counts one record of a result or error type
+     */
+    void count(String type) {
+        counts.computeIfAbsent(type, t -> new LongAdder()).increment();
+    }
+
+    /**
+     * Counts several records of a result or error type at once
+     */
+    void count(String type, long records) {
+        counts.computeIfAbsent(type, t -> new LongAdder()).add(records);
+    }
+
+    /**
+     * Records how long one snap, route or write took
+     * @param startNanos System.nanoTime() when it started
+     */
+    void recordSince(String latency, long startNanos) {
+        latencies.computeIfAbsent(latency, l -> new LatencyHistogram()).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Writes the current figures to the console and the metrics file
+     */
+    synchronized void report() {
+        long now = System.nanoTime();
+        long doneNow = done.sum();
+        double elapsedSeconds = (now - startNanos) / 1e9;
+        double intervalSeconds = (now - lastReportNanos) / 1e9;
+        double rate = intervalSeconds > 0 ? (doneNow - lastReportDone) / intervalSeconds : 0;
+        lastReportNanos = now;
+        lastReportDone = doneNow;
+        long etaSeconds = rate > 0 ? (long) ((total - doneNow) / rate) : -1;
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("time", System.currentTimeMillis());
+        record.put("elapsed_s", Math.round(elapsedSeconds));
+        record.put(unit + "_done", doneNow);
+        record.put(unit + "_total", total);
+        record.put(unit + "_per_s", Math.round(rate * 10) / 10.0);
+        record.put("eta_s", etaSeconds);
+        Map<String, Long> countValues = new TreeMap<>();
+        counts.forEach((type, count) -> countValues.put(type, count.sum()));
+        record.put("counts", countValues);
+        Map<String, Object> latencyValues = new TreeMap<>();
+        latencies.forEach((name, histogram) -> latencyValues.put(name, histogram.summary()));
+        record.put("latency_ms", latencyValues);
+        record.put("heap_used_mb", App.bytesToMegabytes(heap.getUsed()));
+        record.put("heap_committed_mb", App.bytesToMegabytes(heap.getCommitted()));
+        record.put("heap_max_mb", App.bytesToMegabytes(heap.getMax()));
+
+        StringBuilder line = new StringBuilder("*** ").append(doneNow).append("/").append(total).append(" ")
+                .append(unit).append(String.format(" (%.1f%%), %.1f/s", total > 0 ? 100.0 * doneNow / total : 100,
+                        rate));
+        line.append(", ETA ").append(etaSeconds < 0 ? "unknown" : String.format("%d:%02d:%02d", etaSeconds / 3600,
+                etaSeconds / 60 % 60, etaSeconds % 60));
+        countValues.forEach((type, count) -> line.append(" | ").append(type).append(": ").append(count));
+        latencies.forEach((name, histogram) -> line.append(" | ").append(name).append(" ms ")
+                .append(histogram.summary()));
+        line.append(" | heap ").append(App.bytesToMegabytes(heap.getUsed())).append("MB of ")
+                .append(App.bytesToMegabytes(heap.getMax())).append("MB ***");
+        System.out.println(line);
+
+        if (metricsOut != null) {
+            try {
+                metricsOut.write(mapper.writeValueAsString(record));
+                metricsOut.write('\n');
+                metricsOut.flush();
+            } catch (IOException e) {
+                // metrics are only informative, so don't fail the run over them
+                System.out.println("*** WARNING - could not write metrics: " + e.getMessage() + " ***");
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic reports and makes a final one
+     */
+    @Override
+    public void close() throws IOException {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        report();
+        if (metricsOut != null) {
+            metricsOut.close();
+        }
+    }
+
+    /**
+     * Histogram of durations in power of two buckets of nanoseconds, so recording is one LongAdder increment and
+     * percentiles are accurate to within a factor of two
+     */
+    static class LatencyHistogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            // bucket b holds durations below 2^b ns
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))].increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * @return count, mean, p50, p90, p99 and max, in milliseconds
+         */
+        Map<String, Object> summary() {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", count);
+            summary.put("mean", count == 0 ? 0 : millis(totalNanos.sum() / count));
+            summary.put("p50", millis(percentile(counts, count, 0.5)));
+            summary.put("p90", millis(percentile(counts, count, 0.9)));
+            summary.put("p99", millis(percentile(counts, count, 0.99)));
+            summary.put("max", millis(maxNanos.get()));
+            return summary;
+        }
+
+        /**
+         * @return upper bound of the bucket holding the percentile
+         */
+        private static long percentile(long[] counts, long count, double fraction) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 63 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        private static double millis(long nanos) {
+            return Math.round(nanos / 1e3) / 1e3;
+        }
+    }
+}
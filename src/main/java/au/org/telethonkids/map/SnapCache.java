@@ -0,0 +1,101 @@
+package au.org.telethonkids.map;
+
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.storage.index.QueryResult;
+import com.graphhopper.util.Helper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Result of snapping every distinct origin and destination point to the network once, up front, so that routing
+ * does not have to look the same point up in the location index again for every pair it belongs to
+ */
+class SnapCache {
+    private final Map<LatLonPair, QueryResult> snaps;
+    private final List<LatLonPair> unsnappedOrigins = new ArrayList<>();
+    private final List<LatLonPair> unsnappedDestinations = new ArrayList<>();
+
+    /**
+     * Snaps all of the points in parallel
+     * @param origins origin points
+     * @param destinations destination points
+     * @param locationIndex index of the graph that will be routed on
+     * @param filter restricts snapping to edges usable by the routing mode
+     * @param metrics run metrics to record the time taken by each snap in
+     */
+    SnapCache(Collection<LatLonPair> origins, Collection<LatLonPair> destinations,
+              LocationIndex locationIndex, EdgeFilter filter, RunMetrics metrics) {
+        Set<LatLonPair> points = new LinkedHashSet<>(origins);
+        points.addAll(destinations);
+        snaps = new ConcurrentHashMap<>(points.size() * 2);
+        points.parallelStream().forEach(point -> {
+            long start = System.nanoTime();
+            snaps.put(point, locationIndex.findClosest(point.getLat(), point.getLon(), filter));
+            metrics.recordSince(RunMetrics.SNAP, start);
+        });
+        for (LatLonPair origin : new LinkedHashSet<>(origins)) {
+            if (!isValid(origin)) {
+                unsnappedOrigins.add(origin);
+            }
+        }
+        for (LatLonPair destination : new LinkedHashSet<>(destinations)) {
+            if (!isValid(destination)) {
+                unsnappedDestinations.add(destination);
+            }
+        }
+    }
+
+    /**
+     * @return true if the point was found on the network
+     */
+    boolean isValid(LatLonPair point) {
+        QueryResult snap = snaps.get(point);
+        return snap != null && snap.isValid();
+    }
+
+    /**
+     * Gets a private copy of a point's snap, for use in a query graph lookup. QueryGraph.lookup rewrites the closest
+     * node of the results it is given to point at its own virtual nodes, so the cached snap itself must never be
+     * passed to it, especially when several threads are routing from the same points at once.
+     * @return the copied snap, or null if the point could not be snapped
+     */
+    QueryResult copyOf(LatLonPair point) {
+        QueryResult snap = snaps.get(point);
+        if (snap == null || !snap.isValid()) {
+            return null;
+        }
+        QueryResult copy = new QueryResult(snap.getQueryPoint().lat, snap.getQueryPoint().lon);
+        copy.setClosestNode(snap.getClosestNode());
+        copy.setClosestEdge(snap.getClosestEdge());
+        copy.setQueryDistance(snap.getQueryDistance());
+        copy.setWayIndex(snap.getWayIndex());
+        copy.setSnappedPosition(snap.getSnappedPosition());
+        copy.calcSnappedPoint(Helper.DIST_PLANE);
+        return copy;
+    }
+
+    /**
+     * Writes one row to the errors file for every point that could not be snapped, rather than one for every pair
+     * that the point belongs to
+     */
+    void writeErrors(ResultWriter errorWriter) {
+        for (LatLonPair origin : unsnappedOrigins) {
+            errorWriter.write(origin.getId(), origin.getLat(), origin.getLon(), "", "", "", "Origin point not found");
+        }
+        for (LatLonPair destination : unsnappedDestinations) {
+            errorWriter.write("", "", "", destination.getId(), destination.getLat(), destination.getLon(),
+                    "Destination point not found");
+        }
+        if (!unsnappedOrigins.isEmpty() || !unsnappedDestinations.isEmpty()) {
+            System.out.println("*** " + unsnappedOrigins.size() + " origins and " + unsnappedDestinations.size()
+                    + " destinations could not be found on the network; pairs using them are skipped ***");
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package au.org.telethonkids.map;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.routing.weighting.FastestWeighting;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.storage.index.QueryResult;
+import com.graphhopper.util.DistanceCalc;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.Helper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Walking transfers between transit stops: for every stop, each other stop within a maximum walking distance and
+ * the distance to it. Transfers from each stop are held in order of increasing distance, so a search with a
+ * shorter walking limit than the table was built with can stop reading a stop's transfers at the first one that
+ * is too long.
+ *
+ * The table is built once per graph by walking the foot network from every stop, saved in the graph folder, and
+ * memory mapped on later runs rather than read onto the heap.
+ */
+class StopTransferTable {
+    static final String FILE_NAME = "stop_transfers.bin";
+    private static final int MAGIC = 0x53545246;
+    private static final int VERSION = 1;
+    // magic, version, max metres, stop count, stops hash, transfer count
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 8 + 4;
+
+    private final double maxMetres;
+    private final int stopCount;
+    // transfers from stop s are at start[s] .. start[s + 1] - 1
+    private final IntBuffer start;
+    private final IntBuffer targets;
+    private final IntBuffer metres;
+
+    private StopTransferTable(double maxMetres, int stopCount, IntBuffer start, IntBuffer targets, IntBuffer metres) {
+        this.maxMetres = maxMetres;
+        this.stopCount = stopCount;
+        this.start = start;
+        this.targets = targets;
+        this.metres = metres;
+    }
+
+    /**
+     * Gets the table saved in the graph folder if it covers these stops out to at least maxMetres, otherwise
+     * walks the foot network from every stop to build it and saves it there for next time
+     * @param graphFolder folder of the transit graph
+     * @param stops every stop of the loaded feeds, in RaptorTimetable order
+     * @param graph graph containing the foot network
+     * @param locationIndex index of that graph
+     * @param footEncoder encoder of the foot network
+     * @param maxMetres longest transfer to include
+     * @throws IOException if the table cannot be read or saved
+     */
+    static StopTransferTable loadOrBuild(String graphFolder, RaptorTimetable.Stops stops, Graph graph,
+                                         LocationIndex locationIndex, FlagEncoder footEncoder, double maxMetres)
+            throws IOException {
+        File file = new File(graphFolder, FILE_NAME);
+        if (file.exists()) {
+            StopTransferTable table = load(file, stops);
+            if (table != null && table.maxMetres >= maxMetres) {
+                System.out.println("*** Loaded walking transfers between stops up to " + table.maxMetres + "m ***");
+                return table;
+            }
+            System.out.println("*** Walking transfers in " + file + " do not match the transit data or are too short,"
+                    + " rebuilding ***");
+        }
+        System.out.println("Walking between all stops within " + maxMetres + "m");
+        StopTransferTable table = walkBetweenStops(stops, graph, locationIndex, footEncoder, maxMetres);
+        table.save(file.toPath(), stops);
+        return table;
+    }
+
+    /**
+     * Memory maps a saved table
+     * @return the table, or null if it was built for a different set of stops
+     */
+    private static StopTransferTable load(File file, RaptorTimetable.Stops stops) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the mapping remains valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        double maxMetres = buffer.getDouble(8);
+        int stopCount = buffer.getInt(16);
+        long stopsHash = buffer.getLong(20);
+        int transferCount = buffer.getInt(28);
+        if (stopCount != stops.size() || stopsHash != stops.hash()) {
+            return null;
+        }
+        IntBuffer ints = ((ByteBuffer) buffer.position(HEADER_BYTES)).slice().asIntBuffer();
+        return new StopTransferTable(maxMetres, stopCount,
+                slice(ints, 0, stopCount + 1),
+                slice(ints, stopCount + 1, transferCount),
+                slice(ints, stopCount + 1 + transferCount, transferCount));
+    }
+
+    private static IntBuffer slice(IntBuffer ints, int offset, int length) {
+        IntBuffer view = ints.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private void save(Path file, RaptorTimetable.Stops stops) throws IOException {
+        Path temp = Paths.get(file + ".tmp");
+        int transferCount = targets.limit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(maxMetres);
+            out.writeInt(stopCount);
+            out.writeLong(stops.hash());
+            out.writeInt(transferCount);
+            for (int i = 0; i <= stopCount; i++) {
+                out.writeInt(start.get(i));
+            }
+            for (int i = 0; i < transferCount; i++) {
+                out.writeInt(targets.get(i));
+            }
+            for (int i = 0; i < transferCount; i++) {
+                out.writeInt(metres.get(i));
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("*** Saved " + transferCount + " walking transfers between stops to " + file + " ***");
+    }
+
+    /**
+     * Walks the foot network from every stop to each other stop within maxMetres of it. Only stops within
+     * maxMetres in a straight line are looked for, as no walk can be shorter than that.
+     */
+    private static StopTransferTable walkBetweenStops(RaptorTimetable.Stops stops, Graph graph,
+                                                      LocationIndex locationIndex, FlagEncoder footEncoder,
+                                                      double maxMetres) {
+        int stopCount = stops.size();
+        EdgeFilter footFilter = DefaultEdgeFilter.allEdges(footEncoder);
+        int[] stopNodes = new int[stopCount];
+        IntStream.range(0, stopCount).parallel().forEach(stop -> {
+            QueryResult snap = locationIndex.findClosest(stops.getLat(stop), stops.getLon(stop), footFilter);
+            stopNodes[stop] = snap.isValid() ? snap.getClosestNode() : -1;
+        });
+
+        List<IntArrayList> candidates = nearbyStops(stops, maxMetres);
+        List<IntArrayList> targets = new ArrayList<>(stopCount);
+        List<IntArrayList> metres = new ArrayList<>(stopCount);
+        for (int s = 0; s < stopCount; s++) {
+            targets.add(new IntArrayList());
+            metres.add(new IntArrayList());
+        }
+        Weighting weighting = new FastestWeighting(footEncoder);
+        EdgeFilter outFilter = DefaultEdgeFilter.outEdges(footEncoder);
+        ThreadLocal<OneToManySearch> searches = ThreadLocal.withInitial(() -> new OneToManySearch(graph.getNodes())
+                .setTimeLimit((long) (maxMetres / RaptorTimetable.WALK_SPEED_MPS * 1000)));
+        ThreadLocal<EdgeExplorer> explorers = ThreadLocal.withInitial(() -> graph.createEdgeExplorer(outFilter));
+
+        IntStream.range(0, stopCount).parallel().forEach(a -> {
+            IntArrayList near = candidates.get(a);
+            if (stopNodes[a] < 0 || near.isEmpty()) {
+                return;
+            }
+            IntArrayList nodes = new IntArrayList();
+            for (int i = 0; i < near.size(); i++) {
+                if (stopNodes[near.get(i)] >= 0) {
+                    nodes.add(stopNodes[near.get(i)]);
+                }
+            }
+            OneToManySearch search = searches.get();
+            search.search(explorers.get(), weighting, graph.getNodes(), stopNodes[a], nodes.toArray());
+            for (int i = 0; i < near.size(); i++) {
+                int b = near.get(i);
+                int node = stopNodes[b];
+                if (node >= 0 && search.isReached(node) && search.getDistance(node) <= maxMetres) {
+                    // each stop's lists are only written by the thread handling that stop
+                    targets.get(a).add(b);
+                    metres.get(a).add((int) Math.round(search.getDistance(node)));
+                }
+            }
+        });
+        return pack(maxMetres, targets, metres);
+    }
+
+    /**
+     * @return for each stop, the other stops within maxMetres of it in a straight line
+     */
+    private static List<IntArrayList> nearbyStops(RaptorTimetable.Stops stops, double maxMetres) {
+        DistanceCalc distanceCalc = Helper.DIST_EARTH;
+        int stopCount = stops.size();
+        Integer[] byLat = new Integer[stopCount];
+        for (int s = 0; s < stopCount; s++) {
+            byLat[s] = s;
+        }
+        Arrays.sort(byLat, Comparator.comparingDouble(stops::getLat));
+        double maxLatDegrees = maxMetres / 111000.0;
+
+        List<IntArrayList> near = new ArrayList<>(stopCount);
+        for (int s = 0; s < stopCount; s++) {
+            near.add(new IntArrayList());
+        }
+        for (int i = 0; i < stopCount; i++) {
+            int a = byLat[i];
+            for (int j = i + 1; j < stopCount && stops.getLat(byLat[j]) - stops.getLat(a) <= maxLatDegrees; j++) {
+                int b = byLat[j];
+                if (distanceCalc.calcDist(stops.getLat(a), stops.getLon(a), stops.getLat(b), stops.getLon(b))
+                        <= maxMetres) {
+                    near.get(a).add(b);
+                    near.get(b).add(a);
+                }
+            }
+        }
+        return near;
+    }
+
+    /**
+     * Packs per-stop lists into flat arrays, sorting each stop's transfers by distance
+     */
+    static StopTransferTable pack(double maxMetres, List<IntArrayList> targets, List<IntArrayList> metres) {
+        int stopCount = targets.size();
+        int[] start = new int[stopCount + 1];
+        for (int s = 0; s < stopCount; s++) {
+            start[s + 1] = start[s] + targets.get(s).size();
+        }
+        int[] to = new int[start[stopCount]];
+        int[] distances = new int[start[stopCount]];
+        for (int s = 0; s < stopCount; s++) {
+            IntArrayList stopTargets = targets.get(s);
+            IntArrayList stopMetres = metres.get(s);
+            Integer[] order = new Integer[stopTargets.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingInt(stopMetres::get));
+            for (int i = 0; i < order.length; i++) {
+                to[start[s] + i] = stopTargets.get(order[i]);
+                distances[start[s] + i] = stopMetres.get(order[i]);
+            }
+        }
+        return new StopTransferTable(maxMetres, stopCount, IntBuffer.wrap(start), IntBuffer.wrap(to),
+                IntBuffer.wrap(distances));
+    }
+
+    double getMaxMetres() {
+        return maxMetres;
+    }
+
+    int getStart(int stop) {
+        return start.get(stop);
+    }
+
+    int getEnd(int stop) {
+        return start.get(stop + 1);
+    }
+
+    int getTarget(int index) {
+        return targets.get(index);
+    }
+
+    int getMetres(int index) {
+        return metres.get(index);
+    }
+}
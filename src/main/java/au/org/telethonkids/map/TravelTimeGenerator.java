@@ -1,32 +1,56 @@
 package au.org.telethonkids.map;
 
 
-import com.graphhopper.GHRequest;
+import com.carrotsearch.hppc.LongArrayList;
 import com.graphhopper.GHResponse;
 import com.graphhopper.GraphHopper;
 import com.graphhopper.PathWrapper;
+import com.graphhopper.Trip;
 import com.graphhopper.reader.gtfs.GraphHopperGtfs;
 import com.graphhopper.reader.gtfs.GtfsStorage;
 import com.graphhopper.reader.gtfs.PtFlagEncoder;
 import com.graphhopper.reader.gtfs.Request;
-import com.graphhopper.reader.osm.GraphHopperOSM;
+import com.graphhopper.routing.AlgorithmOptions;
+import com.graphhopper.routing.Path;
+import com.graphhopper.routing.QueryGraph;
+import com.graphhopper.routing.RoutingAlgorithm;
+import com.graphhopper.routing.RoutingAlgorithmFactory;
+import com.graphhopper.routing.ch.PrepareContractionHierarchies;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.EdgeFilter;
 import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.FlagEncoder;
 import com.graphhopper.routing.util.FootFlagEncoder;
+import com.graphhopper.routing.util.HintsMap;
+import com.graphhopper.routing.util.TraversalMode;
+import com.graphhopper.routing.weighting.FastestWeighting;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.CHProfile;
+import com.graphhopper.storage.DAType;
 import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.Graph;
 import com.graphhopper.storage.GraphHopperStorage;
 import com.graphhopper.storage.index.LocationIndex;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
-import java.io.FileWriter;
+import com.graphhopper.storage.index.QueryResult;
+import com.graphhopper.util.Parameters;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKBWriter;
+
 import java.io.IOException;
 import java.io.InvalidObjectException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 
@@ -34,6 +58,16 @@ import java.util.stream.Stream;
 public class TravelTimeGenerator {
 
     private final static DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+    // GraphHopper's own default for Request.setMaxWalkDistancePerLeg
+    private final static double RAPTOR_DEFAULT_MAX_WALK_M = 1000;
+    private final static Object[] ERROR_HEADER = {"origin_id", "origin_lat", "origin_lon",
+            "dest_id", "dest_lat", "dest_lon", "error_type"};
+    // error_type of queries abandoned for running past their time budget
+    private final static String TIMEOUT_ERROR = "timeout";
+    // error type under which pairs left out for being further apart than MaxCrowFliesDistanceKM are counted
+    private final static String OUT_OF_RANGE_ERROR = "Points too far apart";
+    // added to each origin's car matrix search limit, for short pairs whose routes wind far from the straight line
+    private final static long CAR_MATRIX_SLACK_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
      /**
       * Runs public transport based travel time search for the configured point pairs and at the configured journey 
@@ -45,15 +79,18 @@ public class TravelTimeGenerator {
 
         // get the actual points, do this first so the user doesn't spend ages waiting for the
         // graph to build only to find that the CSV needs fixing
-        List<FromTo> fromToPoints = config.LoadFromToPoints();
+        FromToPairs fromToPoints = config.LoadFromToPoints();
 
         // Initialise the GraphHopper, generating the graph if not already done
         // no convenience hopper.close() method on GraphHopperGtfs, so in order to properly close the
         // storage and locationindex at the end we need to keep a reference to them, as well as to the hopper itself
         final PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        final FootFlagEncoder footFlagEncoder = new FootFlagEncoder();
         EncodingManager encodingManager = EncodingManager.create(
-                Arrays.asList(ptFlagEncoder, new FootFlagEncoder()), 8);
-        GHDirectory directory = GraphHopperGtfs.createGHDirectory(config.getGraphFolder());
+                Arrays.asList(ptFlagEncoder, footFlagEncoder), 8);
+        // memory mapped, an existing graph is only read as far as the searches touch it
+        GHDirectory directory = config.getMemoryMappedGraph() ? new GHDirectory(config.getGraphFolder(), DAType.MMAP)
+                : GraphHopperGtfs.createGHDirectory(config.getGraphFolder());
         GtfsStorage gtfsStorage = GraphHopperGtfs.createGtfsStorage();
         GraphHopperStorage graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder,
                 gtfsStorage, Collections.singleton(config.getGTFSFile()), Collections.singleton(config.getOSMFile()));
@@ -63,36 +100,14 @@ public class TravelTimeGenerator {
                 graphHopperStorage, locationIndex, gtfsStorage)
                 .createWithoutRealtimeFeed();
 
-        // setup the output files and write headings
-        FileWriter out = new FileWriter(config.getOutputFile());
-        CSVPrinter outPrinter = new CSVPrinter(out, CSVFormat.DEFAULT);
-        FileWriter outErrors = new FileWriter(config.getOutputErrorsFile());
-        CSVPrinter errorPrinter = new CSVPrinter(outErrors, CSVFormat.DEFAULT);
-        outPrinter.printRecord(config.getOriginsData().getIdCol() + "_origin",
-                config.getDestinationsData().getIdCol() + "_destination"
-                ,"total_time","walk_distance_m","straight_line_dist_km", "transit_legs","debug");
-        errorPrinter.printRecord("origin_id", "origin_lat", "origin_lon",
-                "dest_id", "dest_lat", "dest_lon", "error_type");
-        
         GTFSSearchOptions gtfsSearchOptions = config.getTransitOptions();
         if(gtfsSearchOptions == null){
-            outPrinter.close();
-            errorPrinter.close();
             throw new InvalidObjectException("Config file did not contain a TransitOptions section");
         }
                 
         // Optionally configure a max straight line distance above which we will not attempt to 
         // find a network route
-        final double max_corvid_endurance;
-        if (config.getMaxCrowFliesDistanceKM() == null){
-            max_corvid_endurance = Integer.MAX_VALUE;
-            System.out.println("*** Maximum distance between points is unrestricted ***");
-        }
-        else{
-            max_corvid_endurance = config.getMaxCrowFliesDistanceKM();
-            System.out.println("*** Maximum distance between points is restricted to "
-                    + max_corvid_endurance + "km ***");
-        }
+        printDistanceLimit(config, fromToPoints);
 
         
         // GTFS queries need a time, to match to timetables. If the string has been formatted right this
@@ -102,12 +117,33 @@ public class TravelTimeGenerator {
             depTime = OffsetDateTime.parse(gtfsSearchOptions.getEarliestDepartureTime()).toInstant();
         }
         catch (NullPointerException | DateTimeParseException e){
-            outPrinter.close();
-            errorPrinter.close();
             throw new InvalidObjectException(
                     "TransitOptions section did not contain a valid entry for EarliestDepartureTime");
         }
 
+        // Optionally search a window of departure times after depTime rather than just depTime itself
+        final Integer windowMinutes = gtfsSearchOptions.getDepartureWindowMinutes(); // may be null
+        final int stepMinutes = gtfsSearchOptions.getDepartureStepMinutes();
+        final int percentile = gtfsSearchOptions.getTravelTimePercentile();
+        if (windowMinutes == null){
+            System.out.println("*** Single departure time of " + depTime + " ***");
+        }
+        else{
+            if (windowMinutes <= 0 || stepMinutes <= 0 || stepMinutes > windowMinutes
+                    || percentile <= 0 || percentile > 100){
+                throw new InvalidObjectException("TransitOptions needs DepartureWindowMinutes > 0, "
+                        + "0 < DepartureStepMinutes <= DepartureWindowMinutes and 0 < TravelTimePercentile <= 100");
+            }
+            System.out.println("*** Departure window of " + windowMinutes + " minutes from " + depTime
+                    + ", every " + stepMinutes + " minutes ***");
+        }
+
+        // GraphHopper gives up on a search once it has visited this many nodes, and reports no route. A profile search
+        // over a window goes on to find the journeys for every departure in it, so it gets the allowance of a single
+        // departure search for each of them, lest later departures be cut off
+        final int maxVisitedNodes = (int) Math.min(Integer.MAX_VALUE, (long) gtfsSearchOptions.getMaxVisitedNodes()
+                * (windowMinutes == null ? 1 : windowMinutes / stepMinutes + 1));
+
         // Configure the maximum distance between start/end locations in CSV and nearest transport stop, 
         // or between stops at changes
         final Double maxWalkDistPerLeg = gtfsSearchOptions.getMaxWalkDistancePerLeg(); // may be null
@@ -142,143 +178,246 @@ public class TravelTimeGenerator {
                 System.out.println("*** All transit types available ***");
         }
 
-        // Run the search - use parallel processing
-        System.out.println("Points loaded: beginning transit routing search for " + fromToPoints.size() + " route pairs");
-        try {
-            fromToPoints.parallelStream().forEach(
-                    fromTo -> {
-                        //for (CSVRecord origin : origins){
-                        LatLonPair origin = fromTo.getFrom();
-                        int originID = origin.getId();
-                        double originLon = origin.getLon();
-                        double originLat = origin.getLat();
-                        LatLonPair dest = fromTo.getTo();
-                        int destID = dest.getId();
-                        double destLon = dest.getLon();
-                        double destLat = dest.getLat();
-                        double crowFlies = fromTo.HaversineDistance();
-                        if (crowFlies > max_corvid_endurance){
-                            try {
-                                synchronized (errorPrinter) {
-                                    errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                            "Points too far apart");
-                                }
-                            } catch (IOException ioException) {
-                                System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                        originID + " / "+ destID);
-                                System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                            }
-                            return;
-                        }
-                        if (fromTo.isZeroLength() || crowFlies < 0.02){
-                            // try to prevent IndexOutOfBoundsException that seems to occur when routing with
-                            // near-identical points
-                            try {
-                                synchronized (errorPrinter) {
-                                    errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                            "Points identical or within 20m");
-                                }
-                            } catch (IOException ioException) {
-                                System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                        originID + " / "+ destID);
-                                System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                            }
-                            return;
-                        }
-                        
-                        // Run the actual routing query
-                        Request req = new Request(originLat, originLon, destLat, destLon);
-                        // Try to avoid excessively slow searches https://github.com/graphhopper/graphhopper/issues/1396
-                        req.setEarliestDepartureTime(depTime);        
-                        if(maxWalkDistPerLeg != null) {
-                            req.setMaxWalkDistancePerLeg(maxWalkDistPerLeg);
-                        }
-                        req.setProfileQuery(false);
-                        req.setIgnoreTransfers(true);
-                        req.setMaxVisitedNodes(25000); // an arbitrary number i made up, default was 1M
-                        if(blockedRouteType != null){
-                            req.setBlockedRouteTypes(blockedRouteType); // train
-                        }
-                        try {
-                            GHResponse rsp = hopper.route(req);
-                            if (!rsp.hasErrors()) {
-                                // filter to only routes that aren't walk- only
-                                // avoid calling getAll multiple times as this is presumably a bit expensive
-                                List<PathWrapper> responses = rsp.getAll();
-                                Supplier<Stream<PathWrapper>> streamSupplier = () -> responses.stream().filter(p -> p.getLegs().size() > 1);
-                                Stream<PathWrapper> includingTransit = streamSupplier.get();
-                                if (includingTransit.findAny().isPresent()) {
-                                    PathWrapper bestRoute = streamSupplier.get()
-                                            .min(Comparator.comparing(PathWrapper::getTime))
-                                            .orElseThrow(NoSuchElementException::new);
-                                    long bestNonWalkingTime = bestRoute.getTime();
-                                    double walkDistance = bestRoute.getDistance();
-                                    int busLegs = bestRoute.getNumChanges() + 1;
-                                    try {
-                                        synchronized (outPrinter) {
-                                            outPrinter.printRecord(originID, destID, bestNonWalkingTime, walkDistance, crowFlies,
-                                                    busLegs, rsp.getDebugInfo());
-                                        }
-                                    } catch (IOException ioException) {
-                                        System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING RESULT WITH POINTS "
-                                                + originID + " / "+ destID);
-                                        System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                                    }
-                                }
-                                else{
-                                    try {
-                                        synchronized (errorPrinter) {
-                                            errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                                    "No transit route found");
-                                        }
-                                    } catch (IOException ioException) {
-                                        System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                                originID + " / "+ destID);
-                                        System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                                    }
-                                }
-                            }
-                            else{
-                                try {
-                                    synchronized (errorPrinter) {
-                                        errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                                "Routing error: " + rsp.toString());
-                                    }
-                                } catch (IOException ioException) {
-                                    System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                            originID + " / "+ destID);
-                                    System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                                }
-                            }
-                        } catch (com.graphhopper.util.exceptions.PointNotFoundException e) {
-                            try {
-                                synchronized (errorPrinter) {
-                                    errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                            "Point not found");
-                                }
-                            } catch (IOException ioException) {
-                                System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                        originID + " / "+ destID);
-                                System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                            }
-                        }
-                        catch (java.lang.IndexOutOfBoundsException e){
-                            // This seems to occur when start and end points are identical or nearly so. Not certain
-                            // how dissimilar they can be without it happening so hard to filter out bad data
-                            // (115.89468, -31.83413) / (115.89467, -31.83451) fails
-                            System.out.println("*** WARNING - IndexOutOfBoundsException occurred routing with points " +
-                                    originID + " / " + destID);
-                            e.printStackTrace();
-                        }
+        // Transit routing is done by GraphHopper itself unless the raptor engine is chosen. Matrix mode needs a
+        // search that can be run once to every stop, which only the raptor engine provides
+        final boolean useRaptor;
+        String engine = gtfsSearchOptions.getEngine() == null ? "graphhopper" : gtfsSearchOptions.getEngine();
+        switch (engine.toLowerCase()){
+            case "graphhopper":
+                useRaptor = config.getMatrixMode();
+                if (useRaptor){
+                    System.out.println("*** MatrixMode always uses raptor routing for transit ***");
+                }
+                break;
+            case "raptor":
+                useRaptor = true;
+                break;
+            default:
+                throw new InvalidObjectException("TransitOptions Engine must be \"graphhopper\" or \"raptor\"");
+        }
+        if (useRaptor){
+            System.out.println("*** Using raptor routing with up to " + gtfsSearchOptions.getMaxTransfers()
+                    + " transfers ***");
+        }
+        else{
+            System.out.println("*** Each transit search visits at most " + maxVisitedNodes + " nodes ***");
+        }
+
+        // setup the output files and write headings, or pick up where a previous run of this config left off
+        RunCheckpoint checkpoint = openCheckpoint(config, fromToPoints);
+        ResultWriter outWriter;
+        if (windowMinutes == null){
+            outWriter = new ResultWriter(config.getOutputFile(), checkpoint.isResuming(),
+                    config.getOriginsData().getIdCol() + "_origin",
+                    config.getDestinationsData().getIdCol() + "_destination"
+                    ,"total_time","walk_distance_m","straight_line_dist_km", "transit_legs","debug");
+        }
+        else{
+            outWriter = new ResultWriter(config.getOutputFile(), checkpoint.isResuming(),
+                    config.getOriginsData().getIdCol() + "_origin",
+                    config.getDestinationsData().getIdCol() + "_destination"
+                    ,"min_time","median_time","p" + percentile + "_time","departures_served",
+                    "straight_line_dist_km","debug");
+        }
+        ResultWriter errorWriter = new ResultWriter(config.getOutputErrorsFile(), checkpoint.isResuming(), ERROR_HEADER);
+
+        RoutingExecutor executor = RoutingExecutor.fromConfig(config);
+        RunMetrics metrics = startPairMetrics(config, fromToPoints, checkpoint, outWriter, errorWriter);
+
+        // Look up each distinct point on the walking network once, so that points which can't be found are reported
+        // once rather than for every pair they belong to
+        System.out.println("Snapping points to the walking network");
+        SnapCache snaps = new SnapCache(fromToPoints.getOrigins(), fromToPoints.getDestinations(),
+                locationIndex, DefaultEdgeFilter.allEdges(footFlagEncoder), metrics);
+        if (!checkpoint.isResuming()) {
+            snaps.writeErrors(errorWriter);
+        }
+
+        final RaptorRouter raptor;
+        if (useRaptor) {
+            System.out.println("Building timetable for raptor routing");
+            double maxWalk = maxWalkDistPerLeg == null ? RAPTOR_DEFAULT_MAX_WALK_M : maxWalkDistPerLeg;
+            RaptorTimetable.Stops stops = RaptorTimetable.readStops(gtfsStorage);
+            StopTransferTable transfers = StopTransferTable.loadOrBuild(config.getGraphFolder(), stops,
+                    graphHopperStorage, locationIndex, footFlagEncoder, maxWalk);
+            RaptorTimetable timetable = RaptorTimetable.build(gtfsStorage, stops, transfers, depTime, maxWalk);
+            raptor = new RaptorRouter(timetable, graphHopperStorage, locationIndex, footFlagEncoder, maxWalk,
+                    gtfsSearchOptions.getMaxTransfers() + 1, blockedRouteType == null ? -1 : blockedRouteType);
+        }
+        else {
+            raptor = null;
+        }
+
+        if (config.getMatrixMode()){
+            System.out.println("Points loaded: beginning one-to-all transit search for " + fromToPoints.countInRange()
+                    + " route pairs");
+            try {
+                checkpoint.start(outWriter, errorWriter, config.getCheckpointIntervalSeconds());
+                runTransitMatrixSearch(raptor, fromToPoints, snaps, depTime, windowMinutes,
+                        stepMinutes, percentile, executor, metrics, checkpoint, outWriter, errorWriter);
+            }
+            finally {
+                executor.close();
+                checkpoint.close();
+                outWriter.close();
+                errorWriter.close();
+                metrics.close();
+                graphHopperStorage.close();
+                locationIndex.close();
+            }
+            return;
+        }
+
+        BiConsumer<FromTo, RunCheckpoint.Rows> routePair = (fromTo, rows) -> {
+            //for (CSVRecord origin : origins){
+            LatLonPair origin = fromTo.getFrom();
+            int originID = origin.getId();
+            double originLon = origin.getLon();
+            double originLat = origin.getLat();
+            LatLonPair dest = fromTo.getTo();
+            int destID = dest.getId();
+            double destLon = dest.getLon();
+            double destLat = dest.getLat();
+            double crowFlies = fromTo.HaversineDistance();
+            if (fromTo.isZeroLength() || crowFlies < 0.02){
+                // try to prevent IndexOutOfBoundsException that seems to occur when routing with
+                // near-identical points
+                rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                        "Points identical or within 20m");
+                return;
+            }
+            if (!snaps.isValid(origin) || !snaps.isValid(dest)) {
+                // already reported once in the errors file
+                return;
+            }
+
+            if (raptor != null) {
+                if (windowMinutes != null) {
+                    long[] travelTimes = raptor.routeRange(snaps.copyOf(origin), snaps.copyOf(dest), depTime,
+                            stepMinutes * 60, windowMinutes / stepMinutes);
+                    DepartureWindowStats stats = DepartureWindowStats.fromTravelTimes(travelTimes, percentile);
+                    if (stats != null) {
+                        rows.result(originID, destID, stats.getMinTime(), stats.getMedianTime(),
+                                stats.getPercentileTime(), stats.getDeparturesServed(), crowFlies, "raptor");
+                    }
+                    else{
+                        rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                                "No transit route found");
+                    }
+                }
+                else {
+                    RaptorRouter.Journey journey = raptor.route(snaps.copyOf(origin), snaps.copyOf(dest), depTime);
+                    if (journey != null) {
+                        rows.result(originID, destID, journey.getTime(), journey.getWalkDistance(), crowFlies,
+                                journey.getTransitLegs(), "raptor");
                     }
-                    //}
-            );
+                    else{
+                        rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                                "No transit route found");
+                    }
+                }
+                return;
+            }
+            
+            // Run the actual routing query
+            Request req = new Request(originLat, originLon, destLat, destLon);
+            // Try to avoid excessively slow searches https://github.com/graphhopper/graphhopper/issues/1396
+            req.setEarliestDepartureTime(depTime);        
+            if(maxWalkDistPerLeg != null) {
+                req.setMaxWalkDistancePerLeg(maxWalkDistPerLeg);
+            }
+            req.setIgnoreTransfers(true);
+            req.setMaxVisitedNodes(maxVisitedNodes); // default 25000 per departure, GraphHopper's own default is 1M
+            if(blockedRouteType != null){
+                req.setBlockedRouteTypes(blockedRouteType); // train
+            }
+            if (windowMinutes != null){
+                // one profile search finds the pareto-optimal journeys departing anywhere in the window, so the
+                // labels settled for later departures are shared rather than re-found by a search per minute
+                req.setProfileQuery(true);
+                req.setMaxProfileDuration(Duration.ofMinutes(windowMinutes));
+            }
+            else{
+                req.setProfileQuery(false);
+            }
+            try {
+                GHResponse rsp = hopper.route(req);
+                // GraphHopper's search can't be stopped part way, so just discard it if it took too long
+                RoutingExecutor.checkDeadline();
+                if (!rsp.hasErrors() && windowMinutes != null) {
+                    DepartureWindowStats stats = departureWindowStats(rsp.getAll(), depTime, windowMinutes,
+                            stepMinutes, percentile);
+                    if (stats != null) {
+                        rows.result(originID, destID, stats.getMinTime(), stats.getMedianTime(),
+                                stats.getPercentileTime(), stats.getDeparturesServed(), crowFlies,
+                                rsp.getDebugInfo());
+                    }
+                    else{
+                        rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                                "No transit route found");
+                    }
+                }
+                else if (!rsp.hasErrors()) {
+                    // filter to only routes that aren't walk- only
+                    // avoid calling getAll multiple times as this is presumably a bit expensive
+                    List<PathWrapper> responses = rsp.getAll();
+                    Supplier<Stream<PathWrapper>> streamSupplier = () -> responses.stream().filter(p -> p.getLegs().size() > 1);
+                    Stream<PathWrapper> includingTransit = streamSupplier.get();
+                    if (includingTransit.findAny().isPresent()) {
+                        PathWrapper bestRoute = streamSupplier.get()
+                                .min(Comparator.comparing(PathWrapper::getTime))
+                                .orElseThrow(NoSuchElementException::new);
+                        long bestNonWalkingTime = bestRoute.getTime();
+                        double walkDistance = bestRoute.getDistance();
+                        int busLegs = bestRoute.getNumChanges() + 1;
+                        rows.result(originID, destID, bestNonWalkingTime, walkDistance, crowFlies,
+                                busLegs, rsp.getDebugInfo());
+                    }
+                    else{
+                        rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                                "No transit route found");
+                    }
+                }
+                else{
+                    rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                            "Routing error: " + rsp.toString());
+                }
+            } catch (com.graphhopper.util.exceptions.PointNotFoundException e) {
+                rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                        "Point not found");
+            }
+            catch (java.lang.IndexOutOfBoundsException e){
+                // This seems to occur when start and end points are identical or nearly so. Not certain
+                // how dissimilar they can be without it happening so hard to filter out bad data
+                // (115.89468, -31.83413) / (115.89467, -31.83451) fails
+                System.out.println("*** WARNING - IndexOutOfBoundsException occurred routing with points " +
+                        originID + " / " + destID);
+                e.printStackTrace();
+            }
+        };
+
+        // Run the search on the routing threads
+        System.out.println("Points loaded: beginning transit routing search for " + fromToPoints.countInRange()
+                + " route pairs");
+        try {
+            checkpoint.start(outWriter, errorWriter, config.getCheckpointIntervalSeconds());
+            executor.forEach(fromToPoints.stream()
+                    .filter(fromTo -> !checkpoint.isDone(fromTo.getIndex()))
+                    .iterator(), fromTo -> {
+                        RunCheckpoint.Rows rows = new RunCheckpoint.Rows();
+                        routePairWithinBudget(routePair, fromTo, rows, metrics);
+                        checkpoint.complete(rows, fromTo.getIndex());
+                        metrics.addDone(1);
+                    });
         }
         finally {
             // ensure that the graph (and csvs, but that's not so important) are properly closed whilst troubleshooting
             // otherwise it gets corrupted every time we get an exception in the routing and has to be re-made
-            outPrinter.close();
-            errorPrinter.close();
+            executor.close();
+            checkpoint.close();
+            outWriter.close();
+            errorWriter.close();
+            metrics.close();
             graphHopperStorage.close();
             locationIndex.close();
         }
@@ -295,143 +434,609 @@ public class TravelTimeGenerator {
 
         // get the actual points, do this first so the user doesn't spend ages waiting for the
         // graph to build only to find that the CSV needs fixing
-        List<FromTo> fromToPoints = config.LoadFromToPoints();
+        FromToPairs fromToPoints = config.LoadFromToPoints();
 
         // Initialise the GraphHopper, generating the graph if not already done
         // GraphHopperOSM will handle closing storage and locationindex when it itself is closed,
         // unlike GraphHopperGtfs, so it is a bit less fragile!
-        GraphHopper hopper = new GraphHopperOSM().setOSMFile(config.getOSMFile()).
-                setStoreOnFlush(true).
-                setCHEnabled(true).
-                setGraphHopperLocation(config.getGraphFolder()).
-                setEncodingManager(EncodingManager.create("car")).
-                importOrLoad();
-
-        // setup the output files and write headings
-        FileWriter out = new FileWriter(config.getOutputFile());
-        CSVPrinter outPrinter = new CSVPrinter(out, CSVFormat.DEFAULT);
-        FileWriter outErrors = new FileWriter(config.getOutputErrorsFile());
-        CSVPrinter errorPrinter = new CSVPrinter(outErrors, CSVFormat.DEFAULT);
-        outPrinter.printRecord(config.getOriginsData().getIdCol() + "_origin",
+        GraphHopper hopper = loadRoadGraph(config);
+
+        // setup the output files and write headings, or pick up where a previous run of this config left off
+        RunCheckpoint checkpoint = openCheckpoint(config, fromToPoints);
+        ResultWriter outWriter = new ResultWriter(config.getOutputFile(), checkpoint.isResuming(),
+                config.getOriginsData().getIdCol() + "_origin",
                 config.getDestinationsData().getIdCol() + "_destination"
                 ,"total_time","total_dist","straight_line_dist","debug");
-        errorPrinter.printRecord("origin_id", "origin_lat", "origin_lon",
-                "dest_id", "dest_lat", "dest_lon", "error_type");
+        ResultWriter errorWriter = new ResultWriter(config.getOutputErrorsFile(), checkpoint.isResuming(), ERROR_HEADER);
 
         // Optionally set a maximum straight-line distance above which we will not attempt a network 
         // routing search
-        final double max_corvid_endurance;
-        if (config.getMaxCrowFliesDistanceKM() == null){
-            max_corvid_endurance = Integer.MAX_VALUE;
-            System.out.println("*** Maximum distance between points is unrestricted ***");
+        printDistanceLimit(config, fromToPoints);
+
+        RoutingExecutor executor = RoutingExecutor.fromConfig(config);
+        RunMetrics metrics = startPairMetrics(config, fromToPoints, checkpoint, outWriter, errorWriter);
+        final String profile = config.getProfile();
+
+        // Look up each distinct point on the road network once, so that points which can't be found are reported
+        // once rather than for every pair they belong to
+        System.out.println("Snapping points to the road network");
+        SnapCache snaps = new SnapCache(fromToPoints.getOrigins(), fromToPoints.getDestinations(),
+                hopper.getLocationIndex(), DefaultEdgeFilter.allEdges(hopper.getEncodingManager().getEncoder(profile)), metrics);
+        if (!checkpoint.isResuming()) {
+            snaps.writeErrors(errorWriter);
         }
-        else{
-            max_corvid_endurance = config.getMaxCrowFliesDistanceKM();
-            System.out.println("*** Maximum distance between points is restricted to "
-                    + max_corvid_endurance + "km ***");
+
+        if (config.getMatrixMode()){
+            System.out.println("Points loaded: beginning one-to-many car search for " + fromToPoints.countInRange()
+                    + " route pairs");
+            try {
+                checkpoint.start(outWriter, errorWriter, config.getCheckpointIntervalSeconds());
+                runCarMatrixSearch(hopper, profile, config.getMatrixMinSpeedKPH(), fromToPoints, snaps, executor,
+                        metrics, checkpoint, outWriter, errorWriter);
+            }
+            finally {
+                executor.close();
+                checkpoint.close();
+                outWriter.close();
+                errorWriter.close();
+                metrics.close();
+                hopper.close();
+            }
+            return;
+        }
+
+        // Route each pair between its cached snaps through a query graph, as GraphHopper.route does once it has
+        // snapped the points itself, so that no point is looked up in the location index again. This uses the
+        // contraction hierarchy for the profile when the graph has one, just as GraphHopper.route would.
+        HintsMap hints = new HintsMap().setVehicle(profile).setWeighting("fastest");
+        RoutingAlgorithmFactory algoFactory = hopper.getAlgorithmFactory(hints);
+        final Graph routingGraph;
+        final Weighting routingWeighting;
+        if (algoFactory instanceof PrepareContractionHierarchies) {
+            CHProfile chProfile = ((PrepareContractionHierarchies) algoFactory).getCHProfile();
+            routingGraph = hopper.getGraphHopperStorage().getCHGraph(chProfile);
+            routingWeighting = chProfile.getWeighting();
         }
-         
-        // Run the routing searches for all point pairs, using parallel processing
-        System.out.println("Points loaded: beginning car routing search for " + fromToPoints.size() + " route pairs");
+        else {
+            routingGraph = hopper.getGraphHopperStorage();
+            routingWeighting = new FastestWeighting(hopper.getEncodingManager().getEncoder(profile));
+        }
+        AlgorithmOptions algoOptions = AlgorithmOptions.start()
+                .algorithm(Parameters.Algorithms.DIJKSTRA_BI)
+                .traversalMode(TraversalMode.NODE_BASED)
+                .weighting(routingWeighting)
+                .build();
+
+        BiConsumer<FromTo, RunCheckpoint.Rows> routePair = (fromTo, rows) -> {
+            LatLonPair origin = fromTo.getFrom();
+            int originID = origin.getId();
+            double originLon = origin.getLon();
+            double originLat = origin.getLat();
+            LatLonPair dest = fromTo.getTo();
+            int destID = dest.getId();
+            double destLon = dest.getLon();
+            double destLat = dest.getLat();
+            double crowFlies = fromTo.HaversineDistance();
+            if (!snaps.isValid(origin) || !snaps.isValid(dest)) {
+                // already reported once in the errors file
+                return;
+            }
+
+            // private copies, as the query graph rewrites the snaps it is given
+            QueryResult originSnap = snaps.copyOf(origin);
+            QueryResult destSnap = snaps.copyOf(dest);
+            try {
+                QueryGraph queryGraph = new QueryGraph(routingGraph);
+                queryGraph.lookup(originSnap, destSnap);
+                RoutingAlgorithm algo = algoFactory.createAlgo(queryGraph, algoOptions);
+                Path path = algo.calcPath(originSnap.getClosestNode(), destSnap.getClosestNode());
+                // GraphHopper's search can't be stopped part way, so just discard it if it took too long
+                RoutingExecutor.checkDeadline();
+                if (path.isFound()) {
+                    rows.result(originID, destID, path.getTime(), path.getDistance(),
+                            crowFlies, "visited_nodes:" + algo.getVisitedNodes());
+                }
+                else{
+                    rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                            "No matching car route found");
+                }
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                rows.error(originID, originLat, originLon, destID, destLat, destLon,
+                        "Routing error: " + e.getMessage());
+            }
+            catch (java.lang.IndexOutOfBoundsException e){
+                System.out.println("*** WARNING - IndexOutOfBoundsException occurred routing with points " +
+                        originID + " / " + destID);
+                e.printStackTrace();
+            }
+        };
+
+        // Run the routing searches for all point pairs on the routing threads
+        System.out.println("Points loaded: beginning car routing search for " + fromToPoints.countInRange()
+                + " route pairs");
         try {
-            fromToPoints.parallelStream().forEach(
-                    fromTo -> {
-                        LatLonPair origin = fromTo.getFrom();
-                        int originID = origin.getId();
-                        double originLon = origin.getLon();
-                        double originLat = origin.getLat();
-                        LatLonPair dest = fromTo.getTo();
-                        int destID = dest.getId();
-                        double destLon = dest.getLon();
-                        double destLat = dest.getLat();
-                        double crowFlies = fromTo.HaversineDistance();
-                        if (crowFlies > max_corvid_endurance){
-                            try{
-                                synchronized (errorPrinter){
-                                    errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                            "Points too far apart");
-                                }
-                            } catch (IOException ioException){
-                                System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                        originID + " / "+ destID);
-                                System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                            }
-                            return;
+            checkpoint.start(outWriter, errorWriter, config.getCheckpointIntervalSeconds());
+            executor.forEach(fromToPoints.stream()
+                    .filter(fromTo -> !checkpoint.isDone(fromTo.getIndex()))
+                    .iterator(), fromTo -> {
+                        RunCheckpoint.Rows rows = new RunCheckpoint.Rows();
+                        routePairWithinBudget(routePair, fromTo, rows, metrics);
+                        checkpoint.complete(rows, fromTo.getIndex());
+                        metrics.addDone(1);
+                    });
+        }
+        finally {
+            // ensure that the graph (and csvs, but that's not so important) are properly closed whilst troubleshooting
+            // otherwise it gets corrupted every time we get an exception in the routing and has to be re-made
+            executor.close();
+            checkpoint.close();
+            outWriter.close();
+            errorWriter.close();
+            metrics.close();
+            hopper.close();
+        }
+    }
+
+    /**
+     * Runs the car search one origin at a time: the graph is expanded once from each origin until all of that
+     * origin's destinations have been settled, and the whole row of results is written from that one search tree
+     * rather than from a separate point-to-point query per pair.
+     * @param hopper loaded road graph
+     * @param profile vehicle to route with, one of the graph's profiles
+     * @param minSpeedKph slowest average speed along the straight line to search for, or 0 to search until every
+     *                    destination is settled or the graph is exhausted
+     * @param fromToPoints the point pairs to route, which will be grouped by origin
+     * @param snaps every origin and destination already snapped to the road network
+     * @param executor routing threads, each origin's search being one query against the time budget
+     * @param metrics run metrics, each origin's search being timed as one route
+     * @param checkpoint pairs already done are skipped, and each row's pairs are marked once it has been written
+     * @param outWriter
+     * @param errorWriter
+     */
+    private static void runCarMatrixSearch(GraphHopper hopper, String profile, double minSpeedKph,
+                                           FromToPairs fromToPoints, SnapCache snaps, RoutingExecutor executor,
+                                           RunMetrics metrics, RunCheckpoint checkpoint, ResultWriter outWriter,
+                                           ResultWriter errorWriter) {
+        Graph graph = hopper.getGraphHopperStorage();
+        FlagEncoder encoder = hopper.getEncodingManager().getEncoder(profile);
+        Weighting weighting = new FastestWeighting(encoder);
+        EdgeFilter outFilter = DefaultEdgeFilter.outEdges(encoder);
+        // the search arrays are sized to the whole graph, so keep one per worker thread rather than one per origin
+        ThreadLocal<OneToManySearch> searches = ThreadLocal.withInitial(() -> new OneToManySearch(graph.getNodes()));
+
+        List<FromToPairs.OriginRow> rows = fromToPoints.originRows();
+        System.out.println("Routing from " + rows.size() + " distinct origins");
+        if (minSpeedKph > 0) {
+            System.out.println("*** Each origin's search stops at the time to its furthest destination in a"
+                    + " straight line at " + minSpeedKph + "km/h, plus "
+                    + TimeUnit.MILLISECONDS.toMinutes(CAR_MATRIX_SLACK_MILLIS) + " minutes ***");
+        }
+
+        executor.forEach(rows.iterator(),
+                row -> {
+                    LatLonPair origin = row.getOrigin();
+                    List<LatLonPair> dests = row.getDestinations();
+                    LongArrayList handledPairs = new LongArrayList();
+                    List<Object[]> results = new ArrayList<>();
+                    List<Object[]> errors = new ArrayList<>();
+                    List<LatLonPair> routedDests = new ArrayList<>();
+                    List<QueryResult> routedSnaps = new ArrayList<>();
+                    List<Double> routedCrowFlies = new ArrayList<>();
+
+                    QueryResult originSnap = snaps.copyOf(origin);
+                    for (int d = 0; d < dests.size(); d++) {
+                        long pairIndex = row.getPairIndex(d);
+                        if (checkpoint.isDone(pairIndex)) {
+                            continue;
+                        }
+                        handledPairs.add(pairIndex);
+                        LatLonPair dest = dests.get(d);
+                        double crowFlies = new FromTo(origin, dest).HaversineDistance();
+                        if (originSnap == null || !snaps.isValid(dest)) {
+                            // already reported once in the errors file
+                            continue;
+                        }
+                        routedDests.add(dest);
+                        routedSnaps.add(snaps.copyOf(dest));
+                        routedCrowFlies.add(crowFlies);
+                    }
+
+                    if (!routedDests.isEmpty()) {
+                        // one query graph holding the origin and all of its destinations as virtual nodes
+                        List<QueryResult> allSnaps = new ArrayList<>(routedSnaps.size() + 1);
+                        allSnaps.add(originSnap);
+                        allSnaps.addAll(routedSnaps);
+                        QueryGraph queryGraph = new QueryGraph(graph);
+                        queryGraph.lookup(allSnaps);
+                        int[] targets = new int[routedSnaps.size()];
+                        for (int i = 0; i < targets.length; i++) {
+                            targets[i] = routedSnaps.get(i).getClosestNode();
                         }
 
-                        GHRequest req = new GHRequest(originLat, originLon, destLat, destLon);
+                        OneToManySearch search = searches.get();
+                        // destinations not settled by then (e.g. in another subnetwork) are reported as not found
+                        // rather than settling the whole graph looking for them
+                        search.setTimeLimit(minSpeedKph > 0
+                                ? (long) Math.ceil(Collections.max(routedCrowFlies) / minSpeedKph * 3_600_000)
+                                        + CAR_MATRIX_SLACK_MILLIS
+                                : Long.MAX_VALUE);
+                        long start = System.nanoTime();
                         try {
-                            GHResponse rsp = hopper.route(req);
-                            if (!rsp.hasErrors()) {
-                                if (!rsp.getAll().isEmpty()) {
-                                    PathWrapper bestRoute = rsp.getBest();
-                                    long bestTime = bestRoute.getTime();
-                                    double bestRouteDistance = bestRoute.getDistance();
-                                    try {
-                                        synchronized (outPrinter) {
-                                            outPrinter.printRecord(originID, destID, bestTime, bestRouteDistance,
-                                                    crowFlies, rsp.getDebugInfo());
-                                        }
-                                    } catch (IOException ioException) {
-                                        System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING RESULT WITH POINTS "
-                                                + originID + " / "+ destID);
-                                        System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                                    }
+                            search.search(queryGraph.createEdgeExplorer(outFilter), weighting,
+                                    queryGraph.getNodes(), originSnap.getClosestNode(), targets);
+                            metrics.recordSince(RunMetrics.ROUTE, start);
+                            String debug = "visited_nodes:" + search.getVisitedNodes();
+                            for (int i = 0; i < targets.length; i++) {
+                                LatLonPair dest = routedDests.get(i);
+                                if (search.isReached(targets[i])) {
+                                    results.add(new Object[]{origin.getId(), dest.getId(),
+                                            search.getTime(targets[i]), search.getDistance(targets[i]),
+                                            routedCrowFlies.get(i), debug});
                                 }
-                                else{
-                                    try{
-                                        synchronized (errorPrinter){
-                                            errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                                    "No matching car route found");
-                                        }
-                                    } catch (IOException ioException){
-                                        System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                                originID + " / "+ destID);
-                                        System.out.println(ioException.getStackTrace()[0].getLineNumber());
-                                    }
+                                else {
+                                    errors.add(errorRecord(origin, dest, "No matching car route found"));
                                 }
                             }
-                            else{
-                                try {
-                                    synchronized (errorPrinter) {
-                                        errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                                "Routing error: " + rsp.toString());
-                                    }
-                                } catch (IOException ioException) {
-                                    System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                            originID + " / "+ destID);
-                                    System.out.println(ioException.getStackTrace()[0].getLineNumber());
+                        } catch (RoutingExecutor.RoutingTimeoutException e) {
+                            metrics.recordSince(RunMetrics.ROUTE, start);
+                            for (LatLonPair dest : routedDests) {
+                                errors.add(errorRecord(origin, dest, TIMEOUT_ERROR));
+                            }
+                        }
+                    }
+
+                    // hand over the whole row in one go rather than once per pair
+                    checkpoint.complete(results, errors, handledPairs.toArray());
+                    metrics.addDone(handledPairs.size());
+                }
+        );
+    }
+
+    /**
+     * Runs the transit search one origin at a time: a single raptor search is run from each origin to every stop,
+     * and the whole row of results is read from it rather than from a separate query per pair. The walk from each
+     * destination to its nearby stops is found once, up front, and reused for every origin.
+     * @param raptor router over the day's timetable
+     * @param fromToPoints the point pairs to route, which will be grouped by origin
+     * @param snaps every origin and destination already snapped to the walking network
+     * @param depTime departure time, or start of the departure window
+     * @param windowMinutes length of the departure window, or null for the single departure time
+     * @param stepMinutes interval between departures in the window
+     * @param percentile percentile of travel time to report over the window
+     * @param executor routing threads, each origin's search being one query against the time budget
+     * @param metrics run metrics, each origin's search being timed as one route
+     * @param checkpoint pairs already done are skipped, and each row's pairs are marked once it has been written
+     * @param outWriter
+     * @param errorWriter
+     */
+    private static void runTransitMatrixSearch(RaptorRouter raptor, FromToPairs fromToPoints, SnapCache snaps,
+                                               Instant depTime, Integer windowMinutes, int stepMinutes, int percentile, RoutingExecutor executor,
+                                               RunMetrics metrics, RunCheckpoint checkpoint, ResultWriter outWriter,
+                                               ResultWriter errorWriter) {
+        System.out.println("Finding stops within walking distance of each destination");
+        Map<LatLonPair, RaptorRouter.StopWalks> egressWalks = new ConcurrentHashMap<>();
+        executor.forEachWithoutBudget(new LinkedHashSet<>(fromToPoints.getDestinations()).stream()
+                        .filter(snaps::isValid)
+                        .iterator(),
+                dest -> egressWalks.put(dest, raptor.walkToStops(snaps.copyOf(dest))));
+
+        List<FromToPairs.OriginRow> rows = fromToPoints.originRows();
+        System.out.println("Routing from " + rows.size() + " distinct origins");
+
+        executor.forEach(rows.iterator(),
+                row -> {
+                    LatLonPair origin = row.getOrigin();
+                    List<LatLonPair> dests = row.getDestinations();
+                    LongArrayList handledPairs = new LongArrayList();
+                    List<Object[]> results = new ArrayList<>();
+                    List<Object[]> errors = new ArrayList<>();
+                    List<LatLonPair> routedDests = new ArrayList<>();
+                    List<RaptorRouter.StopWalks> routedWalks = new ArrayList<>();
+                    List<Double> routedCrowFlies = new ArrayList<>();
+
+                    for (int d = 0; d < dests.size(); d++) {
+                        long pairIndex = row.getPairIndex(d);
+                        if (checkpoint.isDone(pairIndex)) {
+                            continue;
+                        }
+                        handledPairs.add(pairIndex);
+                        LatLonPair dest = dests.get(d);
+                        FromTo fromTo = new FromTo(origin, dest);
+                        double crowFlies = fromTo.HaversineDistance();
+                        if (fromTo.isZeroLength() || crowFlies < 0.02) {
+                            errors.add(errorRecord(origin, dest, "Points identical or within 20m"));
+                            continue;
+                        }
+                        if (!snaps.isValid(origin) || !snaps.isValid(dest)) {
+                            // already reported once in the errors file
+                            continue;
+                        }
+                        routedDests.add(dest);
+                        routedWalks.add(egressWalks.get(dest));
+                        routedCrowFlies.add(crowFlies);
+                    }
+
+                    long start = System.nanoTime();
+                    try {
+                        if (!routedDests.isEmpty() && windowMinutes == null) {
+                            RaptorRouter.Journey[] journeys = raptor.routeFromOrigin(snaps.copyOf(origin), routedWalks,
+                                    depTime);
+                            metrics.recordSince(RunMetrics.ROUTE, start);
+                            for (int i = 0; i < journeys.length; i++) {
+                                LatLonPair dest = routedDests.get(i);
+                                if (journeys[i] != null) {
+                                    results.add(new Object[]{origin.getId(), dest.getId(), journeys[i].getTime(),
+                                            journeys[i].getWalkDistance(), routedCrowFlies.get(i),
+                                            journeys[i].getTransitLegs(), "raptor"});
+                                }
+                                else {
+                                    errors.add(errorRecord(origin, dest, "No transit route found"));
                                 }
                             }
-                        } catch (com.graphhopper.util.exceptions.PointNotFoundException e) {
-                            try {
-                                synchronized (errorPrinter) {
-                                    errorPrinter.printRecord(originID, originLat, originLon, destID, destLat, destLon,
-                                            "Point not found");
+                        }
+                        else if (!routedDests.isEmpty()) {
+                            long[][] travelTimes = raptor.routeRangeFromOrigin(snaps.copyOf(origin), routedWalks,
+                                    depTime, stepMinutes * 60, windowMinutes / stepMinutes);
+                            metrics.recordSince(RunMetrics.ROUTE, start);
+                            for (int i = 0; i < travelTimes.length; i++) {
+                                LatLonPair dest = routedDests.get(i);
+                                DepartureWindowStats stats = DepartureWindowStats.fromTravelTimes(travelTimes[i],
+                                        percentile);
+                                if (stats != null) {
+                                    results.add(new Object[]{origin.getId(), dest.getId(), stats.getMinTime(),
+                                            stats.getMedianTime(), stats.getPercentileTime(),
+                                            stats.getDeparturesServed(), routedCrowFlies.get(i), "raptor"});
+                                }
+                                else {
+                                    errors.add(errorRecord(origin, dest, "No transit route found"));
                                 }
-                            } catch (IOException ioException) {
-                                System.out.println("*** WARNING - IOEXCEPTION OCCURRED WRITING ERROR MSG WITH POINTS " +
-                                        originID + " / "+ destID);
-                                System.out.println(ioException.getStackTrace()[0].getLineNumber());
                             }
                         }
-                        catch (java.lang.IndexOutOfBoundsException e){
-                            System.out.println("*** WARNING - IndexOutOfBoundsException occurred routing with points " +
-                                    originID + " / " + destID);
-                            e.printStackTrace();
+                    } catch (RoutingExecutor.RoutingTimeoutException e) {
+                        metrics.recordSince(RunMetrics.ROUTE, start);
+                        for (LatLonPair dest : routedDests) {
+                            errors.add(errorRecord(origin, dest, TIMEOUT_ERROR));
                         }
                     }
-            );
+
+                    // hand over the whole row in one go rather than once per pair
+                    checkpoint.complete(results, errors, handledPairs.toArray());
+                    metrics.addDone(handledPairs.size());
+                }
+        );
+    }
+
+    /**
+     * Summarises the journeys from a profile query over the travel times experienced by someone setting off at
+     * each step of the departure window
+     * @param journeys all journeys returned for the window, including walk-only ones which are ignored
+     * @return the summary, or null if no transit journey serves any departure in the window
+     */
+    private static DepartureWindowStats departureWindowStats(List<PathWrapper> journeys, Instant depTime,
+                                                             int windowMinutes, int stepMinutes, int percentile) {
+        long[] departures = new long[journeys.size()];
+        long[] arrivals = new long[journeys.size()];
+        int n = 0;
+        for (PathWrapper journey : journeys) {
+            List<Trip.Leg> legs = journey.getLegs();
+            if (legs.size() > 1) {
+                departures[n] = legs.get(0).getDepartureTime().getTime();
+                arrivals[n] = legs.get(legs.size() - 1).getArrivalTime().getTime();
+                n++;
+            }
+        }
+        return DepartureWindowStats.compute(Arrays.copyOf(departures, n), Arrays.copyOf(arrivals, n),
+                depTime.toEpochMilli(), TimeUnit.MINUTES.toMillis(stepMinutes), windowMinutes / stepMinutes,
+                percentile);
+    }
+
+    /**
+     * Builds a car isochrone around each origin, with bands ending at each of the configured IsochroneTimes, and
+     * writes one row per band holding the band as a polygon (hex WKB) that does not overlap the other bands.
+     * Origins are processed in parallel, each thread growing its isochrones in its own reusable workspace.
+     * @param config
+     * @throws IOException
+     */
+    private static void runIsochroneGeneration(TravelTimeRunConfig config) throws IOException {
+        List<Integer> isochroneTimes = config.getIsochroneTimes();
+        if (isochroneTimes == null || isochroneTimes.isEmpty()) {
+            throw new InvalidObjectException("IsochroneTimes must be given (minutes, separated by spaces) when "
+                    + "no DestinationsData is configured");
+        }
+        long[] bandEdges = new long[isochroneTimes.size()];
+        for (int i = 0; i < bandEdges.length; i++) {
+            bandEdges[i] = TimeUnit.MINUTES.toMillis(isochroneTimes.get(i));
+            if (bandEdges[i] <= 0 || (i > 0 && bandEdges[i] <= bandEdges[i - 1])) {
+                throw new InvalidObjectException("IsochroneTimes must be positive and in ascending order: "
+                        + isochroneTimes);
+            }
+        }
+        String contourMode = config.getIsochroneContourMode();
+        double cellMetres = config.getIsochroneCellMetres();
+        double simplifyMetres = config.getIsochroneSimplifyMetres();
+        System.out.println("*** Isochrone bands end at " + isochroneTimes + " minutes, contoured by "
+                + contourMode + " ***");
+
+        // get the points first so the user doesn't wait for the graph to build only to find the CSV needs fixing
+        PointSourceConfig originsData = config.getOriginsData();
+        PointTable origins = PointTable.load(originsData.getFilePath(), originsData.getLatCol(),
+                originsData.getLonCol(), originsData.getIdCol(), true, originsData.getUseCache());
+
+        GraphHopper hopper = loadRoadGraph(config);
+        FlagEncoder encoder = hopper.getEncodingManager().getEncoder(config.getProfile());
+
+        RunCheckpoint checkpoint;
+        if (config.getResumable()) {
+            // everything that shapes the bands, so that a resumed run never appends bands built differently
+            long fingerprint = Arrays.hashCode(bandEdges);
+            fingerprint = 31 * fingerprint + config.getProfile().hashCode();
+            fingerprint = 31 * fingerprint + contourMode.toLowerCase().hashCode();
+            if (IsochroneGenerator.CONTOUR_RASTER.equalsIgnoreCase(contourMode)) {
+                fingerprint = 31 * fingerprint + Double.hashCode(cellMetres);
+            }
+            fingerprint = 31 * fingerprint + Double.hashCode(simplifyMetres);
+            for (LatLonPair origin : origins.toPoints()) {
+                fingerprint = 31 * fingerprint + origin.hashCode();
+            }
+            checkpoint = RunCheckpoint.open(config.getOutputFile(), config.getOutputErrorsFile(), origins.size(),
+                    fingerprint);
+        }
+        else {
+            checkpoint = RunCheckpoint.disabled();
+        }
+        ResultWriter outWriter = new ResultWriter(config.getOutputFile(), checkpoint.isResuming(),
+                originsData.getIdCol() + "_origin", "origin_lat", "origin_lon", "time", "isochrone");
+        ResultWriter errorWriter = new ResultWriter(config.getOutputErrorsFile(), checkpoint.isResuming(),
+                ERROR_HEADER);
+        RoutingExecutor executor = RoutingExecutor.fromConfig(config);
+        RunMetrics metrics = RunMetrics.fromConfig(config, "origins", origins.size(), checkpoint.countDone());
+        outWriter.setMetrics(metrics, "isochrone bands");
+        errorWriter.setMetrics(metrics, null);
+
+        // the search arrays are sized to the whole graph, so keep one workspace per worker thread
+        ThreadLocal<IsochroneWorkspace> workspaces = ThreadLocal.withInitial(
+                () -> new IsochroneWorkspace(hopper, encoder));
+        System.out.println("Points loaded: beginning isochrone generation for " + origins.size() + " origins");
+        try {
+            checkpoint.start(outWriter, errorWriter, config.getCheckpointIntervalSeconds());
+            executor.forEach(IntStream.range(0, origins.size())
+                    .filter(i -> !checkpoint.isDone(i))
+                    .iterator(), i -> {
+                        int id = origins.getId(i);
+                        double lat = origins.getLat(i);
+                        double lon = origins.getLon(i);
+                        List<List<Coordinate>> isochrone;
+                        List<Coordinate[]> polygonShells;
+                        long start = System.nanoTime();
+                        try {
+                            isochrone = workspaces.get().search(bandEdges, lat, lon);
+                            polygonShells = isochrone == null ? null : IsochroneGenerator.buildIsochronePolygons(
+                                    lat, lon, isochrone, contourMode, cellMetres);
+                            // contouring can't be stopped part way, so just discard it if it took too long
+                            RoutingExecutor.checkDeadline();
+                        } catch (RoutingExecutor.RoutingTimeoutException e) {
+                            checkpoint.complete(Collections.emptyList(), Collections.singletonList(
+                                    new Object[]{id, lat, lon, "", "", "", TIMEOUT_ERROR}), i);
+                            metrics.addDone(1);
+                            return;
+                        } finally {
+                            metrics.recordSince(RunMetrics.ROUTE, start);
+                        }
+                        if (isochrone == null) {
+                            checkpoint.complete(Collections.emptyList(), Collections.singletonList(
+                                    new Object[]{id, lat, lon, "", "", "", "Point not found"}), i);
+                        }
+                        else if (polygonShells == null) {
+                            checkpoint.complete(Collections.emptyList(), Collections.singletonList(
+                                    new Object[]{id, lat, lon, "", "", "", "No isochrone could be built"}), i);
+                        }
+                        else {
+                            List<Geometry> bands = IsochroneGenerator.buildIsochroneBands(polygonShells,
+                                    simplifyMetres);
+                            // WKBWriter is not thread safe
+                            WKBWriter wkbWriter = new WKBWriter();
+                            List<Object[]> rows = new ArrayList<>(bands.size());
+                            for (int j = 0; j < bands.size(); j++) {
+                                rows.add(new Object[]{id, lat, lon, isochroneTimes.get(j),
+                                        WKBWriter.toHex(wkbWriter.write(bands.get(j)))});
+                            }
+                            checkpoint.complete(rows, Collections.emptyList(), i);
+                        }
+                        metrics.addDone(1);
+                    });
         }
         finally {
-            // ensure that the graph (and csvs, but that's not so important) are properly closed whilst troubleshooting
-            // otherwise it gets corrupted every time we get an exception in the routing and has to be re-made
-            outPrinter.close();
-            errorPrinter.close();
+            executor.close();
+            checkpoint.close();
+            outWriter.close();
+            errorWriter.close();
+            metrics.close();
             hopper.close();
         }
     }
 
+    /**
+     * @return road graph for the run with all of its profiles, memory mapped from an existing graph folder if the
+     * config asks for it, else read into the heap and imported first if need be
+     * @throws InvalidObjectException if the profile to route with is not one of the graph's profiles
+     */
+    private static GraphHopper loadRoadGraph(TravelTimeRunConfig config) throws InvalidObjectException {
+        String profile = config.getProfile();
+        if (!Arrays.asList(config.getGraphProfiles().split(",")).contains(profile)) {
+            throw new InvalidObjectException("Profile " + profile + " is not one of the GraphProfiles "
+                    + config.getGraphProfiles());
+        }
+        System.out.println("*** Routing by " + profile + " on a graph built for " + config.getGraphProfiles()
+                + " ***");
+        if (config.getMemoryMappedGraph()) {
+            return App.loadOSMGraphMemoryMapped(config.getGraphFolder(), config.getGraphProfiles());
+        }
+        return App.getOSMGraph(config.getOSMFile(), config.getGraphFolder(), config.getGraphProfiles());
+    }
+
+    /**
+     * @return checkpoint for the run if the config asks for it to be resumable, else one that tracks nothing
+     */
+    private static RunCheckpoint openCheckpoint(TravelTimeRunConfig config, FromToPairs fromToPoints)
+            throws IOException {
+        if (!config.getResumable()) {
+            return RunCheckpoint.disabled();
+        }
+        return RunCheckpoint.open(config.getOutputFile(), config.getOutputErrorsFile(), fromToPoints);
+    }
+
+    /**
+     * Routes one pair, reporting it as a timeout if the search runs past the pair's time budget
+     */
+    private static void routePairWithinBudget(BiConsumer<FromTo, RunCheckpoint.Rows> routePair, FromTo fromTo,
+                                              RunCheckpoint.Rows rows, RunMetrics metrics) {
+        long start = System.nanoTime();
+        try {
+            routePair.accept(fromTo, rows);
+        } catch (RoutingExecutor.RoutingTimeoutException e) {
+            rows.error(errorRecord(fromTo.getFrom(), fromTo.getTo(), TIMEOUT_ERROR));
+        } finally {
+            metrics.recordSince(RunMetrics.ROUTE, start);
+        }
+    }
+
+    /**
+     * Reports the maximum distance between points, and how many pairs were left out for being further apart
+     */
+    private static void printDistanceLimit(TravelTimeRunConfig config, FromToPairs fromToPoints) {
+        if (config.getMaxCrowFliesDistanceKM() == null){
+            System.out.println("*** Maximum distance between points is unrestricted ***");
+        }
+        else{
+            // only counted, rather than written to the errors file one row per pair
+            System.out.println("*** Maximum distance between points is restricted to "
+                    + config.getMaxCrowFliesDistanceKM() + "km: " + fromToPoints.countOutOfRange() + " of "
+                    + fromToPoints.size() + " pairs are further apart and will not be routed ***");
+        }
+    }
+
+    /**
+     * @return metrics for a run over the point pairs within range, counting everything the two writers write along
+     * with the pairs out of range
+     */
+    private static RunMetrics startPairMetrics(TravelTimeRunConfig config, FromToPairs fromToPoints,
+                                               RunCheckpoint checkpoint, ResultWriter outWriter,
+                                               ResultWriter errorWriter) throws IOException {
+        RunMetrics metrics = RunMetrics.fromConfig(config, "pairs", fromToPoints.countInRange(),
+                checkpoint.countDone());
+        if (fromToPoints.countOutOfRange() > 0) {
+            metrics.count(OUT_OF_RANGE_ERROR, fromToPoints.countOutOfRange());
+        }
+        outWriter.setMetrics(metrics, RunMetrics.RESULT);
+        errorWriter.setMetrics(metrics, null);
+        return metrics;
+    }
+
+    private static Object[] errorRecord(LatLonPair origin, LatLonPair dest, String errorType) {
+        return new Object[]{origin.getId(), origin.getLat(), origin.getLon(),
+                dest.getId(), dest.getLat(), dest.getLon(), errorType};
+    }
+
     /**
      * Main entry point for the graphhopper routing. 
      * The first argument must be a path to a configuration yaml file, in which all other options 
@@ -456,9 +1061,8 @@ public class TravelTimeGenerator {
             runCarSearch(config);
         }
         else{
-            System.out.println("Beginning isochrone generation")
-            // TODO tie in the isochrone search code here too
-            
+            System.out.println("Beginning isochrone generation");
+            runIsochroneGeneration(config);
         }
         
         System.out.println("End: " + dtf.format(LocalDateTime.now()));
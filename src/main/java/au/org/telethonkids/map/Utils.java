@@ -1,14 +1,11 @@
 package au.org.telethonkids.map;
 import com.fasterxml.jackson.databind.MapperFeature;
-import com.google.common.collect.Lists;
-import org.apache.commons.csv.CSVRecord;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
@@ -87,6 +84,11 @@ class FromTo{
         this.from = from;
         this.to = to;
     }
+    public FromTo(LatLonPair from, LatLonPair to, long index) {
+        this.from = from;
+        this.to = to;
+        this.index = index;
+    }
     public FromTo(double originLat, double originLon, int originID, double destLat, double destLon, int destId){
         this.from = new LatLonPair(originLat, originLon, originID);
         this.to = new LatLonPair(destLat, destLon, destId);
@@ -108,10 +110,18 @@ class FromTo{
         this.to = to;
     }
 
+    /**
+     * Position of this pair within the run's FromToPairs, used to track which pairs have been completed
+     */
+    public long getIndex() {
+        return index;
+    }
+
     private LatLonPair from;
     private LatLonPair to;
+    private long index;
 
-    private static Double toRad(Double value) {
+    private static double toRad(double value) {
         return value * Math.PI / 180;
     }
 
@@ -126,13 +136,14 @@ class FromTo{
      * d = R.c
      **/
     public double HaversineDistance(){
+        return haversineKm(from.getLat(), from.getLon(), to.getLat(), to.getLon());
+    }
 
+    /**
+     * The Haversine distance in km between two locations, as HaversineDistance() but without making a FromTo
+     */
+    static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
         final int R = 6371; // Radius of the earth
-        double lat1 = from.getLat();
-        double lat2 = to.getLat();
-        double lon1 = from.getLon();
-        double lon2 = to.getLon();
-
         double latDistance = toRad(lat2-lat1);
         double lonDistance = toRad(lon2-lon1);
         double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2) +
@@ -195,9 +206,68 @@ class GTFSSearchOptions{
         MaxWalkDistancePerLeg = maxWalkDistancePerLeg;
     }
 
+    public Integer getDepartureWindowMinutes() {
+        return DepartureWindowMinutes;
+    }
+
+    public void setDepartureWindowMinutes(Integer departureWindowMinutes) {
+        DepartureWindowMinutes = departureWindowMinutes;
+    }
+
+    public int getDepartureStepMinutes() {
+        return DepartureStepMinutes;
+    }
+
+    public void setDepartureStepMinutes(int departureStepMinutes) {
+        DepartureStepMinutes = departureStepMinutes;
+    }
+
+    public int getTravelTimePercentile() {
+        return TravelTimePercentile;
+    }
+
+    public void setTravelTimePercentile(int travelTimePercentile) {
+        TravelTimePercentile = travelTimePercentile;
+    }
+
+    public String getEngine() {
+        return Engine;
+    }
+
+    public void setEngine(String engine) {
+        Engine = engine;
+    }
+
+    public int getMaxTransfers() {
+        return MaxTransfers;
+    }
+
+    public void setMaxTransfers(int maxTransfers) {
+        MaxTransfers = maxTransfers;
+    }
+
+    public int getMaxVisitedNodes() {
+        return MaxVisitedNodes;
+    }
+
+    public void setMaxVisitedNodes(int maxVisitedNodes) {
+        MaxVisitedNodes = maxVisitedNodes;
+    }
+
     private String EarliestDepartureTime;
     private String ExcludeType;
     private Double MaxWalkDistancePerLeg;
+    // if set, route over this many minutes from EarliestDepartureTime rather than at that single time
+    private Integer DepartureWindowMinutes;
+    private int DepartureStepMinutes = 1;
+    private int TravelTimePercentile = 90;
+    // "graphhopper" (default) or "raptor"
+    private String Engine = "graphhopper";
+    // only used by the raptor engine
+    private int MaxTransfers = 4;
+    // only used by the graphhopper engine: most nodes a search for one departure time may visit, multiplied by the
+    // number of departures for a window search
+    private int MaxVisitedNodes = 25000;
 
 }
 
@@ -213,6 +283,7 @@ class PointSourceConfig {
     private String latCol;
     private String lonCol;
     private String idCol;
+    private Boolean useCache;
 
     public PointSourceConfig() {
     }
@@ -248,6 +319,18 @@ class PointSourceConfig {
     public void setIdCol(String idCol) {
         this.idCol = idCol;
     }
+
+    /**
+     * Whether the parsed point columns should be cached in a binary file next to the csv, for faster loading
+     * on later runs
+     */
+    public boolean getUseCache() {
+        return useCache != null && useCache;
+    }
+
+    public void setUseCache(boolean useCache) {
+        this.useCache = useCache;
+    }
 }
 
 /**
@@ -257,12 +340,30 @@ class TravelTimeRunConfig{
     private String OSMFile;
     private String GTFSFile;
     private String GraphFolder;
+    private Boolean MemoryMappedGraph;
+    // comma separated vehicles the graph is built for, e.g. "car,foot,bike", and the one to route with
+    private String GraphProfiles;
+    private String Profile;
     private PointSourceConfig OriginsData;
     private PointSourceConfig DestinationsData;
     private GTFSSearchOptions TransitOptions;
     private Double MaxCrowFliesDistanceKM;
+    private Boolean MatrixMode;
+    private Double MatrixMinSpeedKPH;
+    private Boolean Resumable;
+    private Integer CheckpointIntervalSeconds;
+    private Integer RoutingThreads;
+    private Integer RoutingQueueDepth;
+    private Integer QueryTimeoutSeconds;
+    private Integer MetricsIntervalSeconds;
+    private String MetricsFile;
  
+    // end of each isochrone band in minutes, space separated and ascending, e.g. "15 30 45 60"
     private String IsochroneTimes;
+    // "delaunay" (default) to triangulate the reached nodes, or "raster" to contour them on a grid
+    private String IsochroneContourMode;
+    private Double IsochroneCellMetres;
+    private Double IsochroneSimplifyMetres;
 
     private String OutputFile;
     private String OutputErrorsFile;
@@ -278,6 +379,36 @@ class TravelTimeRunConfig{
         return Arrays.stream(this.IsochroneTimes.split(" +")).map(Integer::parseInt).collect(Collectors.toList());
     }
 
+    public String getIsochroneContourMode() {
+        return IsochroneContourMode == null ? IsochroneGenerator.CONTOUR_DELAUNAY : IsochroneContourMode;
+    }
+
+    public void setIsochroneContourMode(String isochroneContourMode) {
+        IsochroneContourMode = isochroneContourMode;
+    }
+
+    /**
+     * Grid spacing (m) when IsochroneContourMode is "raster"
+     */
+    public double getIsochroneCellMetres() {
+        return IsochroneCellMetres == null ? RasterContourBuilder.DEFAULT_CELL_METRES : IsochroneCellMetres;
+    }
+
+    public void setIsochroneCellMetres(double isochroneCellMetres) {
+        IsochroneCellMetres = isochroneCellMetres;
+    }
+
+    /**
+     * Tolerance (m) that isochrone band outlines are simplified to, 0 to keep every vertex
+     */
+    public double getIsochroneSimplifyMetres() {
+        return IsochroneSimplifyMetres == null ? 0 : IsochroneSimplifyMetres;
+    }
+
+    public void setIsochroneSimplifyMetres(double isochroneSimplifyMetres) {
+        IsochroneSimplifyMetres = isochroneSimplifyMetres;
+    }
+
     public void setTransitOptions(GTFSSearchOptions transitOptions) {
         TransitOptions = transitOptions;
     }
@@ -290,6 +421,146 @@ class TravelTimeRunConfig{
         MaxCrowFliesDistanceKM = maxCrowFliesDistanceKM;
     }
 
+    /**
+     * Whether searches should expand the network once per origin (the road graph for car searches, the timetable
+     * for transit searches) and read all of that origin's destinations from the one search, rather than routing
+     * each point pair separately
+     */
+    public boolean getMatrixMode() {
+        return MatrixMode != null && MatrixMode;
+    }
+
+    public void setMatrixMode(boolean matrixMode) {
+        MatrixMode = matrixMode;
+    }
+
+    /**
+     * Slowest average speed (km/h along the straight line) a car route found in matrix mode may have, 10 if not set,
+     * or 0 for no limit. Each origin's search stops at the time its furthest destination would take at this speed,
+     * plus 10 minutes, so destinations the network can't reach don't make it settle the whole graph.
+     */
+    public double getMatrixMinSpeedKPH() {
+        return MatrixMinSpeedKPH == null ? 10 : MatrixMinSpeedKPH;
+    }
+
+    public void setMatrixMinSpeedKPH(double matrixMinSpeedKPH) {
+        MatrixMinSpeedKPH = matrixMinSpeedKPH;
+    }
+
+    /**
+     * @return whether to open an existing graph folder memory mapped instead of reading it into the heap
+     */
+    public boolean getMemoryMappedGraph() {
+        return MemoryMappedGraph != null && MemoryMappedGraph;
+    }
+
+    public void setMemoryMappedGraph(boolean memoryMappedGraph) {
+        MemoryMappedGraph = memoryMappedGraph;
+    }
+
+    /**
+     * @return comma separated vehicles the graph is built for, "car" if not set
+     */
+    public String getGraphProfiles() {
+        return GraphProfiles == null ? "car" : GraphProfiles.replaceAll("\\s", "");
+    }
+
+    public void setGraphProfiles(String graphProfiles) {
+        GraphProfiles = graphProfiles;
+    }
+
+    /**
+     * @return vehicle to route with, the first of the graph profiles if not set
+     */
+    public String getProfile() {
+        return Profile == null ? getGraphProfiles().split(",")[0] : Profile.trim();
+    }
+
+    public void setProfile(String profile) {
+        Profile = profile;
+    }
+
+    /**
+     * @return seconds between progress reports, 30 if not set, or 0 to report only at the end of the run
+     */
+    public int getMetricsIntervalSeconds() {
+        return MetricsIntervalSeconds == null ? 30 : MetricsIntervalSeconds;
+    }
+
+    public void setMetricsIntervalSeconds(int metricsIntervalSeconds) {
+        MetricsIntervalSeconds = metricsIntervalSeconds;
+    }
+
+    /**
+     * @return file to append each progress report to as a line of JSON, by default next to the output file, or null
+     * if set to an empty string to report to the console only
+     */
+    public String getMetricsFile() {
+        if (MetricsFile == null) {
+            return OutputFile + ".metrics.jsonl";
+        }
+        return MetricsFile.isEmpty() ? null : MetricsFile;
+    }
+
+    public void setMetricsFile(String metricsFile) {
+        MetricsFile = metricsFile;
+    }
+
+    /**
+     * Whether completed point pairs should be checkpointed, so that re-running the same config after a crash
+     * continues where it left off rather than starting again
+     */
+    public boolean getResumable() {
+        return Resumable != null && Resumable;
+    }
+
+    public void setResumable(boolean resumable) {
+        Resumable = resumable;
+    }
+
+    public int getCheckpointIntervalSeconds() {
+        return CheckpointIntervalSeconds == null ? 60 : CheckpointIntervalSeconds;
+    }
+
+    public void setCheckpointIntervalSeconds(int checkpointIntervalSeconds) {
+        CheckpointIntervalSeconds = checkpointIntervalSeconds;
+    }
+
+    /**
+     * Number of threads to route with, by default one per processor available to the JVM (which follows the
+     * container's CPU quota)
+     */
+    public int getRoutingThreads() {
+        return RoutingThreads == null ? Runtime.getRuntime().availableProcessors() : RoutingThreads;
+    }
+
+    public void setRoutingThreads(int routingThreads) {
+        RoutingThreads = routingThreads;
+    }
+
+    /**
+     * Number of origins or point pairs that may be waiting for a routing thread
+     */
+    public int getRoutingQueueDepth() {
+        return RoutingQueueDepth == null ? 4 * getRoutingThreads() : RoutingQueueDepth;
+    }
+
+    public void setRoutingQueueDepth(int routingQueueDepth) {
+        RoutingQueueDepth = routingQueueDepth;
+    }
+
+    /**
+     * Wall-clock time allowed for each query (a point pair, or an origin's row in matrix mode) before it is
+     * abandoned and reported as a timeout, or 0 for no limit
+     */
+    public int getQueryTimeoutSeconds() {
+        return QueryTimeoutSeconds == null ? 0 : QueryTimeoutSeconds;
+    }
+
+    public void setQueryTimeoutSeconds(int queryTimeoutSeconds) {
+        QueryTimeoutSeconds = queryTimeoutSeconds;
+    }
+
     public String getOutputFile() {
         return OutputFile;
     }
@@ -370,19 +641,16 @@ class TravelTimeRunConfig{
     
     /**
      * Attempts to load the origin and destination points from the configured file(s)
-     * @return Set of FromTo points
+     * @return lazily generated FromTo point pairs, leaving out those further apart than MaxCrowFliesDistanceKM
      * @throws IOException
      */
-    public List<FromTo> LoadFromToPoints() throws IOException {
+    public FromToPairs LoadFromToPoints() throws IOException {
+        double maxKm = MaxCrowFliesDistanceKM == null ? Double.POSITIVE_INFINITY : MaxCrowFliesDistanceKM;
         if (this.OriginsData.getFilePath().equals(this.DestinationsData.getFilePath())){
-            return Utils.PointsFromSingleFile(
-                    OriginsData.getFilePath(), OriginsData.getLatCol(), OriginsData.getLonCol(), OriginsData.getIdCol(),
-                    DestinationsData.getLatCol(), DestinationsData.getLonCol(), DestinationsData.getIdCol());
+            return Utils.PointsFromSingleFile(OriginsData, DestinationsData, maxKm);
         }
         else{
-            return Utils.PointsFromODFiles(
-                    OriginsData.getFilePath(), OriginsData.getLatCol(), OriginsData.getLonCol(), OriginsData.getIdCol(),
-                    DestinationsData.getFilePath(), DestinationsData.getLatCol(), DestinationsData.getLonCol(), DestinationsData.getIdCol());
+            return Utils.PointsFromODFiles(OriginsData, DestinationsData, maxKm);
         }
     }
 }
@@ -399,68 +667,42 @@ class Utils {
     }
 
     /**
-     * Gets the cartesian product of From-To point pairs from an origins and a destinations CSV file
-     * @param originsFile path to the origins csv
-     * @param originLatCol column name of the latitude column in the origins file
-     * @param originLonCol column name of the longitude column in the origins file
-     * @param destsFile path to the destinations csv
-     * @param destLatCol column name of the latitude column in the dests file
-     * @param destLonCol column name of the longitude column in the dests file
+     * Gets the cartesian product of From-To point pairs from an origins and a destinations CSV file. The pairs
+     * are generated lazily as they are consumed so memory use depends only on the number of points in each file.
+     * Rows with an id that has already been seen in the same file are skipped.
+     * @param origins location and column names of the origins csv
+     * @param dests location and column names of the destinations csv
+     * @param maxKm pairs further apart than this are left out, or POSITIVE_INFINITY to keep every pair
      * @return
      * @throws IOException, NumberFormatException
      */
-    public static List<FromTo> PointsFromODFiles(String originsFile,
-                                                 String originLatCol, String originLonCol, String originIDCol,
-                                                 String destsFile,
-                                                 String destLatCol, String destLonCol, String destIDCol)
+    public static FromToPairs PointsFromODFiles(PointSourceConfig origins, PointSourceConfig dests, double maxKm)
             throws IOException , NumberFormatException
     {
-        Set<CSVRecord> originRecords = App.getCSVRecords(originsFile);
-        Set<CSVRecord> destRecords = App.getCSVRecords(destsFile);
-        List<FromTo> fromToPoints = Lists.newArrayList();//Sets.newHashSet();
-        for (CSVRecord originRecord: originRecords){
-            Double originLat = Double.parseDouble(originRecord.get(originLatCol));
-            Double originLon = Double.parseDouble(originRecord.get(originLonCol));
-            int originID = Integer.parseInt(originRecord.get(originIDCol));
-            LatLonPair origin = new LatLonPair(originLat, originLon, originID);
-            for(CSVRecord destRecord : destRecords){
-                Double destLat = Double.parseDouble(destRecord.get(destLatCol));
-                Double destLon = Double.parseDouble(destRecord.get(destLonCol));
-                int destID = Integer.parseInt(destRecord.get(destIDCol));
-                LatLonPair dest = new LatLonPair(destLat, destLon, destID);
-                fromToPoints.add(new FromTo(origin, dest));
-            }
-        }
-        return fromToPoints;
+        PointTable originPoints = PointTable.load(origins.getFilePath(),
+                origins.getLatCol(), origins.getLonCol(), origins.getIdCol(), true, origins.getUseCache());
+        PointTable destPoints = PointTable.load(dests.getFilePath(),
+                dests.getLatCol(), dests.getLonCol(), dests.getIdCol(), true, dests.getUseCache());
+        return new FromToPairs.Cartesian(originPoints, destPoints, maxKm);
     }
 
     /**
-     * Parses a CSV file containing two lat/lon pairs on each row into a set of From-To point pairs
-     * @param csvFile Path to the csv file
-     * @param originLatCol Column name of the start latitude column
-     * @param originLonCol Column name of the start longitude column
-     * @param destLatCol Column name of the end latitude column
-     * @param destLonCol Column name of the end longitude column
+     * Parses a CSV file containing two lat/lon pairs on each row into From-To point pairs, one per row
+     * @param origins file location and column names of the start point of each row
+     * @param dests column names of the end point of each row (in the same file)
+     * @param maxKm pairs further apart than this are left out, or POSITIVE_INFINITY to keep every pair
      * @return
      * @throws IOException, NumberFormatException
      */
-    public static List<FromTo> PointsFromSingleFile(String csvFile,
-                                         String originLatCol, String originLonCol, String originIDCol,
-                                         String destLatCol, String destLonCol, String destIDCol) throws IOException, NumberFormatException {
-        Set<CSVRecord> csvRecords = App.getCSVRecords(csvFile);
-        List<FromTo> fromToPoints = Lists.newArrayList();
-        for (CSVRecord csvRecord: csvRecords){
-            Double originLat = Double.parseDouble(csvRecord.get(originLatCol));
-            Double originLon = Double.parseDouble(csvRecord.get(originLonCol));
-            int originID = Integer.parseInt(csvRecord.get(originIDCol));
-            Double destLat = Double.parseDouble(csvRecord.get(destLatCol));
-            Double destLon = Double.parseDouble(csvRecord.get(destLonCol));
-            int destID = Integer.parseInt(csvRecord.get(destIDCol));
-            fromToPoints.add(new FromTo(originLat, originLon, originID, destLat, destLon, destID));
-        }
-        return fromToPoints;
+    public static FromToPairs PointsFromSingleFile(PointSourceConfig origins, PointSourceConfig dests, double maxKm)
+            throws IOException, NumberFormatException {
+        // both ends of each row are read in the one pass, and not de-duplicated: row i of each table must belong to
+        // the same pair
+        PointTable[] points = PointTable.load(origins.getFilePath(), new String[][]{
+                {origins.getLatCol(), origins.getLonCol(), origins.getIdCol()},
+                {dests.getLatCol(), dests.getLonCol(), dests.getIdCol()}}, false, origins.getUseCache());
+        return new FromToPairs.Zipped(points[0], points[1], maxKm);
     }
 
-
 }
 
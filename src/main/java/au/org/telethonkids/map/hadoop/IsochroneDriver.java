@@ -6,26 +6,40 @@ import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 
 
 public class IsochroneDriver {
+    // job configuration key: number of origins each map task searches at once, sharing one graph; 1 runs
+    // OriginMapper directly
+    public static final String MAPPER_THREADS_KEY = "isochrone.mapper.threads";
+
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
         GenericOptionsParser optionParser = new GenericOptionsParser(conf, args);
         String[] remainingArgs = optionParser.getRemainingArgs();
 
         if ((remainingArgs.length != 2)) {
-            System.err.println("Usage: IsochroneDriver <in> <out>");
+            System.err.println("Usage: IsochroneDriver [-D" + MAPPER_THREADS_KEY + "=<threads>] [-D"
+                    + OriginMapper.GRAPH_LOCATION_KEY + "=<graph folder>] <in> <out>");
             System.exit(2);
         }
 
         Job job = Job.getInstance(conf, "IsochroneDriver");
         job.setJarByClass(IsochroneDriver.class);
 
-        job.setMapperClass(OriginMapper.class);
+        int mapperThreads = job.getConfiguration().getInt(MAPPER_THREADS_KEY, 1);
+        if (mapperThreads > 1) {
+            job.setMapperClass(MultithreadedMapper.class);
+            MultithreadedMapper.setMapperClass(job, OriginMapper.class);
+            MultithreadedMapper.setNumberOfThreads(job, mapperThreads);
+        }
+        else {
+            job.setMapperClass(OriginMapper.class);
+        }
         job.setMapOutputKeyClass(NullWritable.class);
         job.setMapOutputValueClass(Text.class);
 
@@ -1,6 +1,9 @@
 package au.org.telethonkids.map.hadoop;
 
+import au.org.telethonkids.map.App;
 import au.org.telethonkids.map.IsochroneGenerator;
+import au.org.telethonkids.map.IsochroneWorkspace;
+import au.org.telethonkids.map.RasterContourBuilder;
 import com.graphhopper.GraphHopper;
 import com.graphhopper.reader.osm.GraphHopperOSM;
 import com.graphhopper.routing.util.EncodingManager;
@@ -13,24 +16,49 @@ import org.locationtech.jts.geom.*;
 import org.locationtech.jts.io.WKBWriter;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Generates the isochrones of each origin. Each graph is memory mapped once per JVM and shared by every
+ * OriginMapper in it: by the threads of a MultithreadedMapper (see IsochroneDriver's isochrone.mapper.threads) and
+ * by later tasks if the JVM is reused. Each mapper keeps its own search workspace, so mappers can run concurrently.
+ */
 public class OriginMapper extends Mapper<Object, Text, NullWritable, Text> {
+    // job configuration keys for the graph folder and, if the graph needs importing, the OSM file to import
+    public static final String GRAPH_LOCATION_KEY = "isochrone.graph.location";
+    public static final String OSM_FILE_KEY = "isochrone.osm.file";
+    // job configuration key: set to false to import the graph on the node if it is not already there, rather than
+    // mapping an existing graph read-only (shared through the page cache by every task JVM on the node)
+    public static final String GRAPH_READ_ONLY_KEY = "isochrone.graph.read.only";
+    // job configuration keys for the vehicle to route with and, if the graph was built for more than that one, the
+    // comma separated vehicles it was built for
+    public static final String PROFILE_KEY = "isochrone.profile";
+    public static final String GRAPH_PROFILES_KEY = "isochrone.graph.profiles";
 
-    private final GraphHopper hopper = new GraphHopperOSM().setOSMFile("/tmp/network.osm.pbf").
-            setStoreOnFlush(true).
-            setCHEnabled(true).
-            setGraphHopperLocation("/tmp/network").
-            setEncodingManager(EncodingManager.create("car")).
-            importOrLoad();
+    // the graphs shared by the mappers in this JVM, by the folder each was loaded from
+    private static final Map<String, GraphHopper> sharedGraphs = new HashMap<>();
+
+    private GraphHopper hopper;
     protected FlagEncoder encoder;
+    // search arrays for this mapper's origins, allocated once rather than per origin
+    private IsochroneWorkspace workspace;
 
 
     private static final int timeLimit = 8100;
     private static final int numberOfBuckets = 9;
+    // job configuration keys for how isochrones are contoured, see IsochroneGenerator.buildIsochronePolygons
+    public static final String CONTOUR_MODE_KEY = "isochrone.contour.mode";
+    public static final String CELL_METRES_KEY = "isochrone.raster.cell.metres";
+    // tolerance in metres to simplify band outlines to, see IsochroneGenerator.buildIsochroneBands
+    public static final String SIMPLIFY_METRES_KEY = "isochrone.simplify.metres";
+    private String contourMode;
+    private double cellMetres;
+    private double simplifyMetres;
 
-    private final static GeometryFactory geometryFactory = new GeometryFactory();
-    private final static WKBWriter wkbWriter = new WKBWriter();
+    // not thread safe, so one per mapper
+    private final WKBWriter wkbWriter = new WKBWriter();
 
     private NullWritable outputKey = NullWritable.get();
     private Text outputValue = new Text();
@@ -38,8 +66,17 @@ public class OriginMapper extends Mapper<Object, Text, NullWritable, Text> {
 
     @Override
     protected void setup(Context context) {
+        String profile = context.getConfiguration().get(PROFILE_KEY, "car");
+        hopper = getSharedGraph(context.getConfiguration().get(GRAPH_LOCATION_KEY, "/tmp/network"),
+                context.getConfiguration().get(OSM_FILE_KEY, "/tmp/network.osm.pbf"),
+                context.getConfiguration().get(GRAPH_PROFILES_KEY, profile),
+                context.getConfiguration().getBoolean(GRAPH_READ_ONLY_KEY, true));
         EncodingManager encodingManager = hopper.getEncodingManager();
-        encoder = encodingManager.getEncoder("car");
+        encoder = encodingManager.getEncoder(profile);
+        workspace = new IsochroneWorkspace(hopper, encoder);
+        contourMode = context.getConfiguration().get(CONTOUR_MODE_KEY, IsochroneGenerator.CONTOUR_DELAUNAY);
+        cellMetres = context.getConfiguration().getDouble(CELL_METRES_KEY, RasterContourBuilder.DEFAULT_CELL_METRES);
+        simplifyMetres = context.getConfiguration().getDouble(SIMPLIFY_METRES_KEY, 0);
     }
 
     @Override
@@ -52,29 +89,47 @@ public class OriginMapper extends Mapper<Object, Text, NullWritable, Text> {
         if(!latString.isEmpty() && !lonString.isEmpty()){
             Double lat = Double.parseDouble(latString);
             Double lon = Double.parseDouble(lonString);
-            List<List<Coordinate>> isochrone = IsochroneGenerator.buildIsochrone(timeLimit, numberOfBuckets, hopper, encoder, lat, lon);
+            List<List<Coordinate>> isochrone = workspace.search(timeLimit, numberOfBuckets, lat, lon);
             if(isochrone != null){
-                List<Coordinate[]> polygonShells = IsochroneGenerator.buildIsochronePolygons(lat, lon, isochrone);
+                List<Coordinate[]> polygonShells = IsochroneGenerator.buildIsochronePolygons(lat, lon, isochrone, contourMode, cellMetres);
                 if(polygonShells != null) {
-                    Polygon previousPolygon = geometryFactory.createPolygon(polygonShells.get(0));
+                    List<Geometry> bands = IsochroneGenerator.buildIsochroneBands(polygonShells, simplifyMetres);
                     int interval = timeLimit / numberOfBuckets;
-                    outputValue.set(value + "," + interval + "," + WKBWriter.toHex(wkbWriter.write(previousPolygon)));
-                    context.write(outputKey, outputValue);
-                    for (int j = 1; j < polygonShells.size() - 1; j++) {
-                        Polygon polygon = geometryFactory.createPolygon(polygonShells.get(j));
-                        Geometry difference = polygon.difference(previousPolygon);
-                        outputValue.set(value + "," + ((j+1) * interval) + "," +  WKBWriter.toHex(wkbWriter.write(difference)));
+                    for (int j = 0; j < bands.size(); j++) {
+                        outputValue.set(value + "," + ((j+1) * interval) + "," +  WKBWriter.toHex(wkbWriter.write(bands.get(j))));
                         context.write(outputKey, outputValue);
-                        previousPolygon = polygon;
-
                     }
                 }
             }
         }
     }
 
-    @Override
-    protected void cleanup(Context context) {
-        hopper.close();
+    /**
+     * @return the graph in this folder, loaded (or imported) by the first mapper to ask for it and shared from then
+     * on. Graphs are kept per folder and never closed, as a mapper of this or another task in a reused JVM may still
+     * be searching one; their memory is released with the JVM.
+     */
+    private static synchronized GraphHopper getSharedGraph(String graphLocation, String osmFile, String graphProfiles,
+                                                           boolean readOnly) {
+        GraphHopper hopper = sharedGraphs.get(graphLocation);
+        if (hopper == null) {
+            if (readOnly) {
+                hopper = App.loadOSMGraphMemoryMapped(graphLocation, graphProfiles);
+            }
+            else {
+                long start = System.currentTimeMillis();
+                hopper = new GraphHopperOSM().setOSMFile(osmFile).
+                        setStoreOnFlush(true).
+                        setMemoryMapped().
+                        setCHEnabled(true).
+                        setGraphHopperLocation(graphLocation).
+                        setEncodingManager(EncodingManager.create(graphProfiles)).
+                        importOrLoad();
+                System.out.println("*** Loaded graph " + graphLocation + " in "
+                        + (System.currentTimeMillis() - start) + "ms ***");
+            }
+            sharedGraphs.put(graphLocation, hopper);
+        }
+        return hopper;
     }
 }
@@ -1,60 +1,53 @@
 package au.org.telethonkids.map.hadoop;
 
-import com.google.common.collect.Lists;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
+import au.org.telethonkids.map.IsochroneIndex;
+import com.carrotsearch.hppc.IntArrayList;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.DoubleWritable;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.locationtech.jts.geom.*;
-import org.locationtech.jts.index.strtree.STRtree;
-import org.locationtech.jts.io.ParseException;
-import org.locationtech.jts.io.WKBReader;
 
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
-import java.util.List;
 
 public class PopulationMapper extends Mapper<Object, Text, Text, DoubleWritable> {
+    // job configuration key: set to false to test cells against the isochrones without preparing them first
+    public static final String PREPARED_KEY = "population.isochrones.prepared";
+    // job configuration key: local path of the isochrones on each node, either a csv or an IsochroneFile, which is
+    // only read as far as the target band's isochrones need
+    public static final String ISOCHRONES_KEY = "population.isochrones.file";
+
+    /**
+     * Job counters showing which point-in-polygon mode was used and how long its tests took, so that runs in the
+     * two modes can be compared
+     */
+    public enum PointInPolygonCounters {
+        ISOCHRONES_PREPARED,
+        ISOCHRONES_NOT_PREPARED,
+        CELLS,
+        CANDIDATE_TESTS,
+        CELLS_REACHED,
+        TEST_MILLIS
+    }
+
     private Text outputKey= new Text();
     private DoubleWritable outputValue = new DoubleWritable();
-    private final static WKBReader wkbReader = new WKBReader();
-    private STRtree isochrones = new STRtree();
-    private final static GeometryFactory geometryFactory = new GeometryFactory();
+    private IsochroneIndex isochrones;
+    private final IntArrayList facilities = new IntArrayList();
+    private long cells;
+    private long cellsReached;
+    private long candidateTests;
+    private long testNanos;
+
     @Override
-    protected void setup(Context context) {
+    protected void setup(Context context) throws IOException {
         Configuration conf = context.getConfiguration();
         String targetTravelTimeBand = conf.get("travel.time.band");
-        try {
-            Reader in = new FileReader("/tmp/isochrones.csv");
-            Iterable<CSVRecord> records = CSVFormat.RFC4180.parse(in);
-
-            for (CSVRecord record : records) {
-                String travelTimeBand = record.get(record.size() - 2);
-                if(travelTimeBand.equals(targetTravelTimeBand)){
-                    String geom = record.get(record.size() - 1);
-                    byte[] bytes = WKBReader.hexToBytes(geom);
-                    Geometry geometry = wkbReader.read(bytes);
-                    StringBuilder stringBuilder = new StringBuilder();
-                    stringBuilder.append(record.get(2)).append(",").append(record.get(record.size() - 5)).append(",").append(record.get(record.size() - 4));
-                    geometry.setUserData(stringBuilder.toString());
-                    isochrones.insert(geometry.getEnvelopeInternal(), geometry);
-                }
-            }
-            isochrones.build();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
-
+        isochrones = IsochroneIndex.load(conf.get(ISOCHRONES_KEY, "/tmp/isochrones.csv"), targetTravelTimeBand,
+                conf.getBoolean(PREPARED_KEY, true));
+        context.getCounter(isochrones.isPrepared() ? PointInPolygonCounters.ISOCHRONES_PREPARED
+                : PointInPolygonCounters.ISOCHRONES_NOT_PREPARED).increment(isochrones.getIsochroneCount());
     }
 
     @Override
@@ -66,24 +59,29 @@ public class PopulationMapper extends Mapper<Object, Text, Text, DoubleWritable>
         Double lon = Double.parseDouble(strings[1]);
         Double pop = Double.parseDouble(strings[2]);
 
-        Coordinate coordinate = new Coordinate(lon,lat);
-        Point point = geometryFactory.createPoint(coordinate);
-        Envelope search = new Envelope(coordinate);
-        search.expandBy(0.001);
-        List<Geometry> candidates = isochrones.query(search);
-        List<String> facilities = Lists.newArrayList();
-        for (Geometry candidate: candidates) {
-            if(candidate.intersects(point)){
-                facilities.add((String) candidate.getUserData());
-            }
+        long start = System.nanoTime();
+        candidateTests += isochrones.findReachable(lat, lon, facilities);
+        testNanos += System.nanoTime() - start;
+        cells++;
+        if (!facilities.isEmpty()) {
+            cellsReached++;
         }
 
-        for (String facility: facilities
-             ) {
-            outputKey.set(facility + "," + facilities.size());
+        for (int i = 0; i < facilities.size(); i++) {
+            outputKey.set(StringUtils.join(isochrones.getFacility(facilities.get(i)), ",") + ","
+                    + facilities.size());
             outputValue.set(pop);
             context.write(outputKey, outputValue);
         }
 
     }
+
+    @Override
+    protected void cleanup(Context context) {
+        // added once per task rather than per cell
+        context.getCounter(PointInPolygonCounters.CELLS).increment(cells);
+        context.getCounter(PointInPolygonCounters.CELLS_REACHED).increment(cellsReached);
+        context.getCounter(PointInPolygonCounters.CANDIDATE_TESTS).increment(candidateTests);
+        context.getCounter(PointInPolygonCounters.TEST_MILLIS).increment(testNanos / 1000000);
+    }
 }
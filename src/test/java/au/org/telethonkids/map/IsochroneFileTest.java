@@ -0,0 +1,112 @@
+package au.org.telethonkids.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.carrotsearch.hppc.IntArrayList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.IOException;
+
+/**
+ * Writes a few isochrones of two facilities across two bands, out of band order, and reads them back
+ */
+public class IsochroneFileTest {
+    private static final String[] FACILITY_A = {"a", "-31.95", "115.86"};
+    private static final String[] FACILITY_B = {"b", "-32.05", "115.75"};
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final Polygon a15 = square(0, 0, 1);
+    private final Polygon a30 = square(0, 0, 2);
+    private final Polygon b15 = square(10, 10, 1);
+    private final Geometry b30 = geometryFactory.createMultiPolygon(new Polygon[]{square(9, 9, 4), square(20, 20, 1)});
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Polygon square(double x, double y, double size) {
+        return geometryFactory.createPolygon(new Coordinate[]{new Coordinate(x, y), new Coordinate(x + size, y),
+                new Coordinate(x + size, y + size), new Coordinate(x, y + size), new Coordinate(x, y)});
+    }
+
+    private String write() throws IOException {
+        String path = folder.getRoot() + "/isochrones.bin";
+        try (IsochroneFile.Writer writer = new IsochroneFile.Writer(path)) {
+            writer.add(FACILITY_A, 30, a30);
+            writer.add(FACILITY_B, 15, b15);
+            writer.add(FACILITY_B, 30, b30);
+            writer.add(FACILITY_A, 15, a15);
+        }
+        return path;
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        String path = write();
+        assertTrue(IsochroneFile.isIsochroneFile(path));
+        IsochroneFile file = IsochroneFile.open(path);
+
+        assertArrayEquals(new int[]{15, 30}, file.getBands());
+        assertEquals(0, file.findBand(15));
+        assertEquals(1, file.findBand(30));
+        assertEquals(-1, file.findBand(45));
+        assertEquals(4, file.getEntryCount());
+        assertEquals(0, file.getBandStart(0));
+        assertEquals(2, file.getBandEnd(0));
+        assertEquals(2, file.getBandStart(1));
+        assertEquals(4, file.getBandEnd(1));
+
+        // facilities are numbered in the order they were first added, and entries sorted by facility within a band
+        assertEquals(2, file.getFacilityCount());
+        assertArrayEquals(FACILITY_A, file.getFacility(0));
+        assertArrayEquals(FACILITY_B, file.getFacility(1));
+        Geometry[] expected = {a15, b15, a30, b30};
+        int[] expectedFacilities = {0, 1, 0, 1};
+        for (int entry = 0; entry < expected.length; entry++) {
+            assertEquals(expectedFacilities[entry], file.getEntryFacility(entry));
+            assertEquals(expected[entry].getEnvelopeInternal(), file.getEntryEnvelope(entry));
+            assertTrue("entry " + entry, expected[entry].equalsExact(file.readGeometry(entry)));
+        }
+        assertEquals(new Envelope(9, 21, 9, 21), file.getEntryEnvelope(3));
+    }
+
+    @Test
+    public void indexFindsTheFacilitiesReachableFromAPoint() throws IOException {
+        String path = write();
+        for (boolean prepare : new boolean[]{true, false}) {
+            IsochroneIndex index = IsochroneIndex.load(IsochroneFile.open(path), 30, prepare);
+            assertEquals(2, index.getIsochroneCount());
+            assertEquals(2, index.getFacilityCount());
+            assertArrayEquals(FACILITY_B, index.getFacility(1));
+
+            IntArrayList facilities = new IntArrayList();
+            index.findReachable(1.5, 1.5, facilities);
+            assertArrayEquals(new int[]{0}, facilities.toArray());
+            // in the second part of b's multipolygon
+            index.findReachable(20.5, 20.5, facilities);
+            assertArrayEquals(new int[]{1}, facilities.toArray());
+            // within b's envelope but in neither part
+            assertEquals(1, index.findReachable(15, 15, facilities));
+            assertEquals(0, facilities.size());
+            assertEquals(0, index.findReachable(-5, -5, facilities));
+            assertEquals(0, facilities.size());
+        }
+
+        // the band at 15 minutes, loaded by path
+        IsochroneIndex index = IsochroneIndex.load(path, "15");
+        IntArrayList facilities = new IntArrayList();
+        index.findReachable(1.5, 1.5, facilities);
+        assertEquals(0, facilities.size());
+        index.findReachable(10.5, 10.5, facilities);
+        assertArrayEquals(new int[]{1}, facilities.toArray());
+        assertEquals(0, IsochroneIndex.load(IsochroneFile.open(path), 45, true).getIsochroneCount());
+    }
+}
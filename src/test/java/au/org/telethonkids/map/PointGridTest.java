@@ -0,0 +1,95 @@
+package au.org.telethonkids.map;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Compares PointGrid searches with measuring the distance to every point, for points spread over the globe and
+ * gathered around the poles and the antimeridian, where the longitude span of a search wraps or covers everything
+ */
+public class PointGridTest {
+    private static final double[] RADII_KM = {0.5, 5, 50, 500, 3000, 12000, 25000};
+
+    private static LatLonPair[] points(Random random) {
+        LatLonPair[] points = new LatLonPair[2000];
+        for (int i = 0; i < points.length; i++) {
+            double lat;
+            double lon = -180 + random.nextDouble() * 360;
+            switch (i % 5) {
+                case 0:
+                    // near the north or south pole
+                    lat = (random.nextBoolean() ? 1 : -1) * (89 + random.nextDouble());
+                    break;
+                case 1:
+                    // either side of the antimeridian
+                    lat = -90 + random.nextDouble() * 180;
+                    lon = (random.nextBoolean() ? 1 : -1) * (179.5 + random.nextDouble() * 0.5);
+                    break;
+                case 2:
+                    // a cluster around Perth
+                    lat = -31.95 + random.nextDouble() * 0.1;
+                    lon = 115.8 + random.nextDouble() * 0.1;
+                    break;
+                default:
+                    lat = -90 + random.nextDouble() * 180;
+            }
+            points[i] = new LatLonPair(lat, lon, i);
+        }
+        // exactly on the poles and the antimeridian
+        points[0] = new LatLonPair(90, 0, 0);
+        points[1] = new LatLonPair(-90, 45, 1);
+        points[2] = new LatLonPair(0, 180, 2);
+        points[3] = new LatLonPair(0, -180, 3);
+        points[4] = new LatLonPair(89.999, 180, 4);
+        return points;
+    }
+
+    private static int[] bruteForce(LatLonPair[] points, double radiusKm, double lat, double lon) {
+        int count = 0;
+        int[] found = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            if (FromTo.haversineKm(lat, lon, points[i].getLat(), points[i].getLon()) <= radiusKm) {
+                found[count++] = i;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(found, 0, result, 0, count);
+        return result;
+    }
+
+    @Test
+    public void findsTheSamePointsAsMeasuringEveryDistance() {
+        Random random = new Random(42);
+        LatLonPair[] points = points(random);
+        double[][] fixedQueries = {{90, 0}, {-90, 0}, {89.9999, 123}, {0, 180}, {0, -180}, {45, 179.999},
+                {-45, -179.999}, {-31.9, 115.85}};
+        for (double radiusKm : RADII_KM) {
+            PointGrid grid = new PointGrid(points, radiusKm);
+            for (double[] query : fixedQueries) {
+                assertArrayEquals("radius " + radiusKm + " at " + query[0] + "," + query[1],
+                        bruteForce(points, radiusKm, query[0], query[1]), grid.within(query[0], query[1]));
+            }
+            for (int q = 0; q < 200; q++) {
+                // near an existing point, so that small radii find something
+                LatLonPair near = points[random.nextInt(points.length)];
+                double lat = Math.max(-90, Math.min(90, near.getLat() + (random.nextDouble() - 0.5) * 0.01));
+                double lon = near.getLon();
+                assertArrayEquals("radius " + radiusKm + " at " + lat + "," + lon,
+                        bruteForce(points, radiusKm, lat, lon), grid.within(lat, lon));
+            }
+        }
+    }
+
+    @Test
+    public void findsPointsWhenTheCircleStopsJustShortOfAPole() {
+        // the longitude span is then as wide as it gets without taking in every longitude, 90 degrees either side
+        double radiusKm = 100;
+        double lat = 90 - Math.toDegrees(radiusKm / 6371) - 1e-8;
+        LatLonPair[] points = {new LatLonPair(lat, 0, 0), new LatLonPair(lat, 60, 1), new LatLonPair(89.99, 170, 2)};
+        PointGrid grid = new PointGrid(points, radiusKm);
+        assertArrayEquals(bruteForce(points, radiusKm, lat, 0), grid.within(lat, 0));
+    }
+}
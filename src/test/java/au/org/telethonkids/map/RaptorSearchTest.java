@@ -0,0 +1,142 @@
+package au.org.telethonkids.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.carrotsearch.hppc.IntArrayList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Searches over a small timetable:
+ *
+ * route A (bus) runs 0 - 1 - 2, route B (bus) runs 3 - 4, and stops 2 and 3 are 100m apart. Route C (rail)
+ * runs 0 - 4 directly but slowly, so the quickest journey from 0 to 4 changes from A to B.
+ */
+public class RaptorSearchTest {
+    private static final int BUS = 3;
+    private static final int RAIL = 2;
+    private static final int TRANSFER_METRES = 100;
+    private static final int TRANSFER_SECONDS = (int) Math.ceil(TRANSFER_METRES / RaptorTimetable.WALK_SPEED_MPS);
+
+    private static final int[] ORIGIN = {0};
+    private static final int[] NO_WALK = {0};
+    // only stop 4 leads to the destination
+    private static final int[] EGRESS = {-1, -1, -1, -1, 0};
+
+    private static RaptorTimetable timetable() {
+        RaptorTimetable.Stops stops = new RaptorTimetable.Stops(new String[]{"0", "1", "2", "3", "4"},
+                new double[]{0, 0, 0, 0, 0}, new double[]{0, 0.01, 0.02, 0.021, 0.05});
+        List<int[]> patternStops = Arrays.asList(new int[]{0, 1, 2}, new int[]{3, 4}, new int[]{0, 4});
+        List<List<int[][]>> patternTrips = Arrays.asList(
+                Arrays.asList(trip(1000, 300, 300), trip(2000, 300, 300)),
+                Arrays.asList(trip(1500, 400), trip(2500, 400), trip(3500, 400)),
+                Collections.singletonList(trip(1100, 3900)));
+
+        List<IntArrayList> targets = new ArrayList<>();
+        List<IntArrayList> metres = new ArrayList<>();
+        for (int s = 0; s < stops.size(); s++) {
+            targets.add(new IntArrayList());
+            metres.add(new IntArrayList());
+        }
+        targets.get(2).add(3);
+        metres.get(2).add(TRANSFER_METRES);
+        targets.get(3).add(2);
+        metres.get(3).add(TRANSFER_METRES);
+        StopTransferTable transfers = StopTransferTable.pack(500, targets, metres);
+
+        return RaptorTimetable.fromTrips(0, stops, patternStops, new int[]{BUS, BUS, RAIL}, patternTrips,
+                transfers, 500);
+    }
+
+    /**
+     * @return a trip leaving its first stop at the given time and taking the given seconds to reach each next stop,
+     * with no dwell at stops
+     */
+    private static int[][] trip(int departure, int... legSeconds) {
+        int[] times = new int[legSeconds.length + 1];
+        times[0] = departure;
+        for (int i = 0; i < legSeconds.length; i++) {
+            times[i + 1] = times[i] + legSeconds[i];
+        }
+        return new int[][]{times, times.clone()};
+    }
+
+    @Test
+    public void changesAtTheTransferWhenThatIsQuicker() {
+        RaptorSearch search = new RaptorSearch(timetable(), 3, -1);
+        // A reaches 2 at 1600, and the walk to 3 is in time for the 2500 B, which reaches 4 at 2900
+        assertEquals(2900, search.run(900, ORIGIN, NO_WALK, EGRESS));
+        assertEquals(2, search.getBestRides());
+        assertEquals(4, search.getBestEgressStop());
+
+        int[] transferMetres = new int[1];
+        assertEquals(0, search.traceBest(transferMetres));
+        assertEquals(TRANSFER_METRES, transferMetres[0]);
+    }
+
+    @Test
+    public void ridesLimitAndBlockedRouteTypeFallBackToTheDirectRoute() {
+        RaptorSearch oneRide = new RaptorSearch(timetable(), 1, -1);
+        assertEquals(5000, oneRide.run(900, ORIGIN, NO_WALK, EGRESS));
+        assertEquals(1, oneRide.getBestRides());
+        int[] transferMetres = new int[1];
+        assertEquals(0, oneRide.traceBest(transferMetres));
+        assertEquals(0, transferMetres[0]);
+
+        RaptorSearch noBus = new RaptorSearch(timetable(), 3, BUS);
+        assertEquals(5000, noBus.run(900, ORIGIN, NO_WALK, EGRESS));
+        assertEquals(1, noBus.getBestRides());
+
+        RaptorSearch noRail = new RaptorSearch(timetable(), 3, RAIL);
+        assertEquals(RaptorSearch.UNREACHED, noRail.run(2100, ORIGIN, NO_WALK, EGRESS));
+        assertEquals(0, noRail.getBestRides());
+        assertEquals(-1, noRail.traceBest(new int[1]));
+    }
+
+    @Test
+    public void tracesEachStopBackToItsAccessStop() {
+        RaptorSearch search = new RaptorSearch(timetable(), 3, -1);
+        // stop 1 can also be walked to, but too late for the first A
+        search.run(900, new int[]{0, 1}, new int[]{0, 600}, null);
+
+        assertEquals(1300, search.getBestTransitArrival(1));
+        assertEquals(1600 + TRANSFER_SECONDS, search.getBestTransitArrival(3));
+        assertEquals(2900, search.getBestTransitArrival(4));
+
+        int[] out = new int[2];
+        assertEquals(1, search.traceToStop(3, out));
+        assertArrayEquals(new int[]{TRANSFER_METRES, 0}, out);
+
+        out = new int[2];
+        assertEquals(2, search.traceToStop(4, out));
+        assertArrayEquals(new int[]{TRANSFER_METRES, 0}, out);
+
+        out = new int[2];
+        assertEquals(1, search.traceToStop(2, out));
+        assertArrayEquals(new int[]{0, 0}, out);
+    }
+
+    @Test
+    public void rangeSearchMatchesSeparateSearches() {
+        int[] departures = {3100, 2400, 1900, 1400, 1050, 900};
+        RaptorSearch range = new RaptorSearch(timetable(), 3, -1);
+        RaptorSearch single = new RaptorSearch(timetable(), 3, -1);
+        for (int departure : departures) {
+            int rangeArrival = range.run(departure, ORIGIN, NO_WALK, EGRESS);
+            single.reset();
+            assertEquals("arrival leaving at " + departure,
+                    single.run(departure, ORIGIN, NO_WALK, EGRESS), rangeArrival);
+            assertEquals("rides leaving at " + departure, single.getBestRides(), range.getBestRides());
+            int[] rangeMetres = new int[1];
+            int[] singleMetres = new int[1];
+            assertEquals(single.traceBest(singleMetres), range.traceBest(rangeMetres));
+            assertEquals(singleMetres[0], rangeMetres[0]);
+        }
+        assertEquals(2900, range.run(900, ORIGIN, NO_WALK, EGRESS));
+    }
+}